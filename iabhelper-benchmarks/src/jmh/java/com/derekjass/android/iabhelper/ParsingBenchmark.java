@@ -0,0 +1,77 @@
+package com.derekjass.android.iabhelper;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the construction of {@link Purchase} and {@link Product} from the
+ * JSON returned by the billing service, against reading the same fields from
+ * an {@code org.json} tree as the library originally did.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsingBenchmark {
+
+    private static final String PURCHASE_JSON = "{"
+            + "\"orderId\":\"12999763169054705758.1371079406387615\","
+            + "\"packageName\":\"com.example.app\","
+            + "\"productId\":\"exampleSku\","
+            + "\"purchaseTime\":1345678900000,"
+            + "\"purchaseState\":0,"
+            + "\"developerPayload\":\"bGoa+V7g/yqDXvKRqq+JTFn4uQZbPiQJo4pf9RzJ\","
+            + "\"purchaseToken\":\"opaque-token-up-to-1000-characters\"}";
+    private static final String PRODUCT_JSON = "{"
+            + "\"productId\":\"exampleSku\","
+            + "\"type\":\"inapp\","
+            + "\"price\":\"$5.00\","
+            + "\"title\":\"Example Title\","
+            + "\"description\":\"This is an example description\"}";
+    private static final String SIGNATURE = "c2lnbmF0dXJl";
+
+    @Benchmark
+    public Purchase purchase() {
+        return new Purchase(PURCHASE_JSON, SIGNATURE, Product.MANAGED_PRODUCT);
+    }
+
+    @Benchmark
+    public void purchaseJsonObject(Blackhole bh) throws Exception {
+        JSONObject jo = new JSONObject(PURCHASE_JSON);
+        bh.consume(jo.optString("orderId"));
+        bh.consume(jo.optString("packageName"));
+        bh.consume(jo.optString("productId"));
+        bh.consume(jo.optLong("purchaseTime"));
+        bh.consume(jo.optInt("purchaseState"));
+        bh.consume(jo.optString("developerPayload"));
+        bh.consume(jo.optString("purchaseToken"));
+    }
+
+    @Benchmark
+    public Product product() {
+        return new Product(PRODUCT_JSON);
+    }
+
+    @Benchmark
+    public void productJsonObject(Blackhole bh) throws Exception {
+        JSONObject jo = new JSONObject(PRODUCT_JSON);
+        bh.consume(jo.optString("productId"));
+        bh.consume(jo.optString("type"));
+        bh.consume(jo.optString("price"));
+        bh.consume(jo.optString("title"));
+        bh.consume(jo.optString("description"));
+    }
+}
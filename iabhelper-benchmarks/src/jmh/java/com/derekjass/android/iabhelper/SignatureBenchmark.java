@@ -0,0 +1,96 @@
+package com.derekjass.android.iabhelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures signature verifications per second of {@link RsaSignatureValidator}
+ * and {@link CachingSignatureValidator}, against the naive validator most
+ * applications write, which decodes the public key and creates a new
+ * {@link Signature} on every call.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureBenchmark {
+
+    private static final String DATA = "{"
+            + "\"orderId\":\"12999763169054705758.1371079406387615\","
+            + "\"packageName\":\"com.example.app\","
+            + "\"productId\":\"exampleSku\","
+            + "\"purchaseTime\":1345678900000,"
+            + "\"purchaseState\":0,"
+            + "\"purchaseToken\":\"opaque-token-up-to-1000-characters\"}";
+
+    private String mPublicKey;
+    private String mSignature;
+    private SignatureValidator mRsaValidator;
+    private SignatureValidator mCachingValidator;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keys = generator.generateKeyPair();
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keys.getPrivate());
+        signer.update(DATA.getBytes("UTF-8"));
+        mSignature = Base64.getEncoder().encodeToString(signer.sign());
+        mPublicKey = Base64.getEncoder().encodeToString(
+                keys.getPublic().getEncoded());
+        mRsaValidator = new RsaSignatureValidator(mPublicKey);
+        mCachingValidator = new CachingSignatureValidator(
+                new RsaSignatureValidator(mPublicKey));
+        if (!naive() || !rsaValidator() || !cachingValidator()) {
+            throw new IllegalStateException("Signature does not verify");
+        }
+    }
+
+    @Benchmark
+    public boolean naive() throws Exception {
+        byte[] key = Base64.getDecoder().decode(mPublicKey);
+        PublicKey publicKey = KeyFactory.getInstance("RSA")
+                .generatePublic(new X509EncodedKeySpec(key));
+        Signature verifier = Signature.getInstance("SHA1withRSA");
+        verifier.initVerify(publicKey);
+        verifier.update(DATA.getBytes("UTF-8"));
+        return verifier.verify(Base64.getDecoder().decode(mSignature));
+    }
+
+    @Benchmark
+    public boolean rsaValidator() {
+        return mRsaValidator.validateSignature(DATA, mSignature);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean rsaValidatorConcurrent() {
+        return mRsaValidator.validateSignature(DATA, mSignature);
+    }
+
+    @Benchmark
+    public boolean cachingValidator() {
+        return mCachingValidator.validateSignature(DATA, mSignature);
+    }
+}
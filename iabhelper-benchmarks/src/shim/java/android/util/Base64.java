@@ -0,0 +1,18 @@
+package android.util;
+
+/**
+ * Stands in for the Android class on a plain JVM, so that
+ * {@code RsaSignatureValidator} can be benchmarked unchanged. Only decoding
+ * is supported.
+ */
+public final class Base64 {
+
+    public static final int DEFAULT = 0;
+
+    private Base64() {
+    }
+
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+}
@@ -0,0 +1,200 @@
+package com.derekjass.android.iabhelper.testing;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.derekjass.android.iabhelper.BillingException;
+import com.derekjass.android.iabhelper.BillingFuture;
+import com.derekjass.android.iabhelper.BillingHelper;
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+import com.derekjass.android.iabhelper.HistogramBillingMetrics;
+import com.derekjass.android.iabhelper.Product;
+import com.derekjass.android.iabhelper.Purchase;
+import com.derekjass.android.iabhelper.testing.FakeBillingService.Call;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link BillingHelper} against a {@link FakeBillingService}: sharing
+ * of purchase queries, failing responses, rebinding after the service dies,
+ * and requests that wait for the service while their executor is full.
+ */
+@MediumTest
+public class BillingHelperTest extends AndroidTestCase {
+
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final List<String> PRODUCT_IDS =
+            Collections.singletonList("premium");
+
+    private FakeBillingService mService;
+    private BillingHelper mHelper;
+    private BillingHelper mOtherHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mService = new FakeBillingService(getContext().getPackageName());
+        mService.addProduct(Product.MANAGED_PRODUCT, "premium", "$1.00",
+                "Premium", "Removes ads");
+        mService.addPurchase(Product.MANAGED_PRODUCT, "premium", null);
+        mService.addPurchase(Product.MANAGED_PRODUCT, "coins", null);
+        mHelper = BillingHelper.newManagedProductHelper(getContext(), mService);
+        mOtherHelper = BillingHelper.newManagedProductHelper(getContext(),
+                mService);
+        mHelper.connect();
+        mOtherHelper.connect();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.disconnect();
+        mOtherHelper.disconnect();
+        BillingHelper.setMetrics(null);
+        BillingHelper.setBindTimeout(10000);
+        super.tearDown();
+    }
+
+    public void testConcurrentQueriesShareOneRequest() throws Exception {
+        mService.setLatency(200);
+        List<BillingFuture<List<Purchase>>> futures = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            BillingHelper helper = i % 2 == 0 ? mHelper : mOtherHelper;
+            futures.add(helper.queryPurchases());
+        }
+        for (BillingFuture<List<Purchase>> future : futures) {
+            assertEquals(2, await(future).size());
+        }
+        assertEquals(1, mService.getCallCount(Call.GET_PURCHASES));
+    }
+
+    public void testUndefinedResponseCodeFailsEveryWaiter() throws Exception {
+        BillingHelper.setMetrics(new HistogramBillingMetrics());
+        mService.setLatency(200);
+        // 2 is SERVICE_UNAVAILABLE, which BillingError has no constant for
+        mService.injectResponseCode(Call.GET_PURCHASES, 2, 1);
+        List<BillingFuture<List<Purchase>>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(mHelper.queryPurchases());
+        }
+        for (BillingFuture<List<Purchase>> future : futures) {
+            assertError(BillingError.ERROR, future);
+        }
+
+        // the failed query is not shared with later callers
+        assertEquals(2, await(mHelper.queryPurchases()).size());
+        assertEquals(2, mService.getCallCount(Call.GET_PURCHASES));
+    }
+
+    public void testQueryIsRetriedAfterServiceDies() throws Exception {
+        mService.injectDeadObject(Call.GET_PURCHASES, 1);
+
+        assertEquals(2, await(mHelper.queryPurchases()).size());
+        assertEquals(2, mService.getCallCount(Call.GET_PURCHASES));
+    }
+
+    public void testConsumeFailsWhenServiceDies() throws Exception {
+        Purchase purchase = await(mHelper.queryPurchases()).get(0);
+        mService.injectDeadObject(Call.CONSUME_PURCHASE, 1);
+
+        assertError(BillingError.REMOTE_EXCEPTION,
+                mHelper.consumePurchase(purchase));
+        // the next request waits for the service to be bound again
+        assertEquals(purchase.getPurchaseToken(),
+                await(mHelper.consumePurchase(purchase)).getPurchaseToken());
+        assertEquals(2, mService.getCallCount(Call.CONSUME_PURCHASE));
+    }
+
+    public void testPendingRequestsAreFedToBoundedExecutor() throws Exception {
+        mHelper.setExecutor(BillingHelper.newBoundedExecutor(1, 1));
+        killService();
+        List<BillingFuture<List<Product>>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(mHelper.queryProducts(PRODUCT_IDS));
+        }
+
+        for (BillingFuture<List<Product>> future : futures) {
+            assertEquals(1, await(future).size());
+        }
+    }
+
+    public void testPendingRequestIsRejectedByFullExecutor() throws Exception {
+        BillingHelper.setBindTimeout(3000);
+        Executor executor = BillingHelper.newBoundedExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            block(executor, release);
+            block(executor, release);
+            mHelper.setExecutor(executor);
+            killService();
+            BillingFuture<List<Product>> rejected =
+                    mHelper.queryProducts(PRODUCT_IDS);
+            BillingFuture<List<Product>> accepted =
+                    mOtherHelper.queryProducts(PRODUCT_IDS);
+
+            // the full executor doesn't hold up requests for other executors
+            assertEquals(1, await(accepted).size());
+            assertError(BillingError.REQUEST_REJECTED, rejected);
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testPendingRequestTimesOutWhileUnbound() throws Exception {
+        // shorter than the first rebind attempt
+        BillingHelper.setBindTimeout(300);
+        killService();
+
+        assertError(BillingError.SERVICE_TIMEOUT,
+                mHelper.queryProducts(PRODUCT_IDS));
+    }
+
+    /**
+     * Makes the service die under a request of another helper, so that
+     * requests made afterwards wait for it to be bound again.
+     */
+    private void killService() throws Exception {
+        int calls = mService.getCallCount(Call.GET_SKU_DETAILS);
+        mService.injectDeadObject(Call.GET_SKU_DETAILS, 1);
+        mOtherHelper.queryProducts(PRODUCT_IDS);
+        long deadline = SystemClock.elapsedRealtime() + 5000;
+        while (mService.getCallCount(Call.GET_SKU_DETAILS) == calls) {
+            assertTrue(SystemClock.elapsedRealtime() < deadline);
+            SystemClock.sleep(10);
+        }
+        // the first rebind is a second away
+        SystemClock.sleep(100);
+    }
+
+    private static void block(Executor executor, final CountDownLatch release) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
+    private static <T> T await(BillingFuture<T> future) throws Exception {
+        return future.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static void assertError(BillingError expected,
+                                    BillingFuture<?> future) throws Exception {
+        try {
+            await(future);
+            fail("expected " + expected);
+        } catch (BillingException e) {
+            assertEquals(expected, e.getError());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.derekjass.android.iabhelper.testing;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.derekjass.android.iabhelper.BillingFuture;
+import com.derekjass.android.iabhelper.BillingHelper;
+import com.derekjass.android.iabhelper.CachingSignatureValidator;
+import com.derekjass.android.iabhelper.Product;
+import com.derekjass.android.iabhelper.Purchase;
+import com.derekjass.android.iabhelper.testing.FakeBillingService.Call;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures the whole {@link BillingHelper#queryPurchases()} pipeline, from
+ * the paged {@code getPurchases} calls through signature verification and
+ * parsing to the completed future, against a {@link FakeBillingService}.
+ * The pipeline needs the Android framework, so unlike the JMH benchmarks of
+ * the iabhelper-benchmarks module it runs on a device or emulator.
+ * <p/>
+ * Results are logged with the tag {@value #TAG}. Run only this class with
+ * <pre>
+ * adb shell am instrument -w -e class \
+ *     com.derekjass.android.iabhelper.testing.PurchaseQueryBenchmark \
+ *     com.derekjass.android.iabhelper.testing.test/android.test.InstrumentationTestRunner
+ * </pre>
+ */
+@LargeTest
+public class PurchaseQueryBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "PurchaseQueryBenchmark";
+    private static final int PURCHASES = 200;
+    private static final int PAGE_SIZE = 20;
+    private static final int WARMUP_QUERIES = 5;
+    private static final int QUERIES = 20;
+    private static final int CONCURRENT_QUERIES = 1000;
+
+    private FakeBillingService mService;
+    private BillingHelper mHelper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mService = new FakeBillingService(getContext().getPackageName());
+        mService.setPageSize(PAGE_SIZE);
+        for (int i = 0; i < PURCHASES; i++) {
+            mService.addPurchase(Product.MANAGED_PRODUCT, "product" + i, null);
+        }
+        mHelper = BillingHelper.newManagedProductHelper(getContext(), mService);
+        mHelper.connect();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.disconnect();
+        super.tearDown();
+    }
+
+    public void testUnverifiedQueries() throws Exception {
+        measureQueries("unverified");
+    }
+
+    public void testVerifiedQueries() throws Exception {
+        mHelper.setSignatureValidator(mService.newSignatureValidator());
+        measureQueries("verified");
+    }
+
+    public void testCachingValidatorQueries() throws Exception {
+        // large enough for every purchase, or each query evicts the results
+        // the next one needs
+        mHelper.setSignatureValidator(new CachingSignatureValidator(
+                mService.newSignatureValidator(), PURCHASES));
+        measureQueries("caching validator");
+    }
+
+    public void testConcurrentQueries() throws Exception {
+        mHelper.setSignatureValidator(mService.newSignatureValidator());
+        mHelper.queryPurchasesBlocking();
+        int calls = mService.getCallCount(Call.GET_PURCHASES);
+
+        long start = SystemClock.elapsedRealtime();
+        List<BillingFuture<List<Purchase>>> futures = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_QUERIES; i++) {
+            futures.add(mHelper.queryPurchases());
+        }
+        for (BillingFuture<List<Purchase>> future : futures) {
+            assertEquals(PURCHASES, future.get().size());
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        calls = mService.getCallCount(Call.GET_PURCHASES) - calls;
+
+        Log.i(TAG, String.format("concurrent: %d queries of %d purchases in"
+                        + " %d ms, %d getPurchases calls",
+                CONCURRENT_QUERIES, PURCHASES, elapsed, calls));
+    }
+
+    private void measureQueries(String name) throws Exception {
+        for (int i = 0; i < WARMUP_QUERIES; i++) {
+            assertEquals(PURCHASES, mHelper.queryPurchasesBlocking().size());
+        }
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < QUERIES; i++) {
+            assertEquals(PURCHASES, mHelper.queryPurchasesBlocking().size());
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, String.format("%s: %.2f ms per query of %d purchases in"
+                        + " pages of %d",
+                name, (double) elapsed / QUERIES, PURCHASES, PAGE_SIZE));
+    }
+}
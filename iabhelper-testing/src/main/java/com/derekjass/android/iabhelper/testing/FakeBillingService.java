@@ -0,0 +1,514 @@
+package com.derekjass.android.iabhelper.testing;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Base64;
+
+import com.android.vending.billing.IInAppBillingService;
+import com.derekjass.android.iabhelper.BillingHelper;
+import com.derekjass.android.iabhelper.Product;
+import com.derekjass.android.iabhelper.RsaSignatureValidator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process implementation of the billing service for testing code that
+ * uses a {@link BillingHelper} without the Play Store. Pass it to
+ * {@link BillingHelper#newManagedProductHelper(Context, IInAppBillingService)}
+ * or {@link BillingHelper#newSubscriptionHelper(Context, IInAppBillingService)}
+ * and the helpers send their requests here instead of binding to the Play
+ * Store.
+ * <p/>
+ * Products and purchases are added with {@link #addProduct} and
+ * {@link #addPurchase}. Every purchase is signed with a key pair generated
+ * for this service, so it passes the validation of the
+ * {@link RsaSignatureValidator} returned by {@link #newSignatureValidator()}.
+ * Purchases are returned in pages of {@link #setPageSize(int)} purchases with
+ * continuation tokens, every call can be slowed down with
+ * {@link #setLatency(long)}, and failures can be injected with
+ * {@link #injectResponseCode(Call, int, int)} and
+ * {@link #injectDeadObject(Call, int)}.
+ * <p/>
+ * The Play Store's purchase activity cannot be faked, so
+ * {@code getBuyIntent} never returns an intent. Use
+ * {@link #newPurchaseResult(String, String, String)} to create the result a
+ * completed purchase would have delivered to
+ * {@link BillingHelper#handleActivityResult}.
+ * <p/>
+ * This class is safe to use from multiple threads.
+ */
+public class FakeBillingService extends IInAppBillingService.Stub {
+
+    /**
+     * The calls of the billing service.
+     */
+    public enum Call {
+        IS_BILLING_SUPPORTED,
+        GET_SKU_DETAILS,
+        GET_BUY_INTENT,
+        GET_PURCHASES,
+        CONSUME_PURCHASE
+    }
+
+    private static final int RESULT_OK = 0;
+    private static final int RESULT_BILLING_UNAVAILABLE = 3;
+    private static final int RESULT_ITEM_UNAVAILABLE = 4;
+    private static final int RESULT_DEVELOPER_ERROR = 5;
+    private static final int RESULT_ITEM_ALREADY_OWNED = 7;
+    private static final int RESULT_ITEM_NOT_OWNED = 8;
+    private static final int DEAD_OBJECT = Integer.MIN_VALUE;
+
+    private static final String RESPONSE_CODE = "RESPONSE_CODE";
+    private static final String ITEM_ID_LIST = "ITEM_ID_LIST";
+    private static final String DETAILS_LIST = "DETAILS_LIST";
+    private static final String INAPP_PURCHASE_ITEM_LIST =
+            "INAPP_PURCHASE_ITEM_LIST";
+    private static final String INAPP_PURCHASE_DATA_LIST =
+            "INAPP_PURCHASE_DATA_LIST";
+    private static final String INAPP_DATA_SIGNATURE_LIST =
+            "INAPP_DATA_SIGNATURE_LIST";
+    private static final String INAPP_CONTINUATION_TOKEN =
+            "INAPP_CONTINUATION_TOKEN";
+    private static final String INAPP_PURCHASE_DATA = "INAPP_PURCHASE_DATA";
+    private static final String INAPP_DATA_SIGNATURE = "INAPP_DATA_SIGNATURE";
+
+    private static final class FakePurchase {
+        final String productId;
+        final String token;
+        final String json;
+        final String signature;
+
+        FakePurchase(String productId, String token, String json,
+                     String signature) {
+            this.productId = productId;
+            this.token = token;
+            this.json = json;
+            this.signature = signature;
+        }
+    }
+
+    private final String mPackageName;
+    private final PrivateKey mPrivateKey;
+    private final String mPublicKey;
+    private final Map<String, Map<String, String>> mProducts;
+    private final Map<String, Map<String, FakePurchase>> mPurchases;
+    private final Map<Call, LinkedList<Integer>> mInjected;
+    private final Map<Call, AtomicInteger> mCallCounts;
+    private final AtomicInteger mNextOrder;
+    private volatile long mLatency;
+    private volatile int mPageSize;
+
+    /**
+     * Creates a fake billing service with a new signing key, no products and
+     * no purchases. Generating the key may take a moment on slow devices.
+     *
+     * @param packageName package name recorded in the synthetic purchases
+     */
+    public FakeBillingService(String packageName) {
+        if (packageName == null) {
+            throw new IllegalArgumentException("packageName may not be null");
+        }
+        mPackageName = packageName;
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            KeyPair keyPair = generator.generateKeyPair();
+            mPrivateKey = keyPair.getPrivate();
+            mPublicKey = Base64.encodeToString(
+                    keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+        mProducts = new LinkedHashMap<>();
+        mPurchases = new LinkedHashMap<>();
+        mInjected = new EnumMap<>(Call.class);
+        mCallCounts = new EnumMap<>(Call.class);
+        for (Call call : Call.values()) {
+            mInjected.put(call, new LinkedList<Integer>());
+            mCallCounts.put(call, new AtomicInteger());
+        }
+        mNextOrder = new AtomicInteger();
+        mPageSize = 100;
+    }
+
+    /**
+     * Returns the Base64 encoded public key that verifies the signatures of
+     * the purchases of this service.
+     *
+     * @return the public key
+     */
+    public String getBase64PublicKey() {
+        return mPublicKey;
+    }
+
+    /**
+     * Returns a new validator that accepts the signatures of the purchases of
+     * this service.
+     *
+     * @return a validator for this service's purchases
+     */
+    public RsaSignatureValidator newSignatureValidator() {
+        return new RsaSignatureValidator(mPublicKey);
+    }
+
+    /**
+     * Sets how long every call blocks before it is answered, to reproduce a
+     * slow Play Store.
+     *
+     * @param millis latency of every call in milliseconds
+     */
+    public void setLatency(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis may not be negative");
+        }
+        mLatency = millis;
+    }
+
+    /**
+     * Sets the maximum number of purchases returned by a single
+     * {@code getPurchases} call. Any further purchases are returned on later
+     * pages using continuation tokens. The default is 100.
+     *
+     * @param pageSize maximum number of purchases per page
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Adds a product, or replaces the product with the same type and ID.
+     *
+     * @param productType type of the product, {@code "inapp"} or
+     *                    {@code "subs"}
+     * @param productId   ID of the product
+     * @param price       formatted price of the product
+     * @param title       title of the product
+     * @param description description of the product
+     */
+    public void addProduct(String productType, String productId, String price,
+                           String title, String description) {
+        if (productType == null || productId == null) {
+            throw new IllegalArgumentException(
+                    "productType and productId may not be null");
+        }
+        try {
+            JSONObject json = new JSONObject();
+            json.put("productId", productId);
+            json.put("type", productType);
+            json.put("price", price);
+            json.put("title", title);
+            json.put("description", description);
+            synchronized (this) {
+                productsOf(productType).put(productId, json.toString());
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds a signed purchase of the given product. The product does not need
+     * to have been added with {@link #addProduct}.
+     *
+     * @param productType      type of the product, {@code "inapp"} or
+     *                         {@code "subs"}
+     * @param productId        ID of the purchased product
+     * @param developerPayload developer payload of the purchase, may be
+     *                         {@code null}
+     * @return the purchase token of the new purchase
+     */
+    public String addPurchase(String productType, String productId,
+                              String developerPayload) {
+        return createPurchase(productType, productId, developerPayload).token;
+    }
+
+    /**
+     * Adds a signed purchase of the given product, and returns the result
+     * that the purchase activity of the Play Store would have delivered for
+     * it, to be passed to {@link BillingHelper#handleActivityResult}.
+     *
+     * @param productType      type of the product, {@code "inapp"} or
+     *                         {@code "subs"}
+     * @param productId        ID of the purchased product
+     * @param developerPayload developer payload of the purchase, may be
+     *                         {@code null}
+     * @return the activity result data of the purchase
+     */
+    public Intent newPurchaseResult(String productType, String productId,
+                                    String developerPayload) {
+        FakePurchase purchase = createPurchase(productType, productId,
+                developerPayload);
+        Intent data = new Intent();
+        data.putExtra(RESPONSE_CODE, RESULT_OK);
+        data.putExtra(INAPP_PURCHASE_DATA, purchase.json);
+        data.putExtra(INAPP_DATA_SIGNATURE, purchase.signature);
+        return data;
+    }
+
+    /**
+     * Removes every purchase.
+     */
+    public synchronized void clearPurchases() {
+        mPurchases.clear();
+    }
+
+    /**
+     * Makes the next count calls of the given kind fail with the response
+     * code instead of being answered.
+     *
+     * @param call         kind of call to fail
+     * @param responseCode billing response code to return
+     * @param count        number of calls to fail
+     */
+    public void injectResponseCode(Call call, int responseCode, int count) {
+        if (responseCode == RESULT_OK) {
+            throw new IllegalArgumentException(
+                    "responseCode must be an error");
+        }
+        inject(call, responseCode, count);
+    }
+
+    /**
+     * Makes the next count calls of the given kind throw a
+     * {@link DeadObjectException}, as if the Play Store had crashed.
+     *
+     * @param call  kind of call to fail
+     * @param count number of calls to fail
+     */
+    public void injectDeadObject(Call call, int count) {
+        inject(call, DEAD_OBJECT, count);
+    }
+
+    /**
+     * Returns how many calls of the given kind have been made.
+     *
+     * @param call kind of call
+     * @return the number of calls made
+     */
+    public int getCallCount(Call call) {
+        return mCallCounts.get(call).get();
+    }
+
+    @Override
+    public int isBillingSupported(int apiVersion, String packageName,
+                                  String type) throws RemoteException {
+        Integer injected = beginCall(Call.IS_BILLING_SUPPORTED);
+        if (injected != null) return injected;
+        return RESULT_OK;
+    }
+
+    @Override
+    public Bundle getSkuDetails(int apiVersion, String packageName,
+                                String type, Bundle skusBundle)
+            throws RemoteException {
+        Integer injected = beginCall(Call.GET_SKU_DETAILS);
+        if (injected != null) return result(injected);
+        ArrayList<String> details = new ArrayList<>();
+        synchronized (this) {
+            Map<String, String> products = productsOf(type);
+            for (String productId : skusBundle.getStringArrayList(
+                    ITEM_ID_LIST)) {
+                String json = products.get(productId);
+                if (json != null) details.add(json);
+            }
+        }
+        Bundle result = result(RESULT_OK);
+        result.putStringArrayList(DETAILS_LIST, details);
+        return result;
+    }
+
+    @Override
+    public Bundle getBuyIntent(int apiVersion, String packageName, String sku,
+                               String type, String developerPayload)
+            throws RemoteException {
+        Integer injected = beginCall(Call.GET_BUY_INTENT);
+        if (injected != null) return result(injected);
+        synchronized (this) {
+            if (!productsOf(type).containsKey(sku)) {
+                return result(RESULT_ITEM_UNAVAILABLE);
+            }
+            for (FakePurchase purchase : purchasesOf(type).values()) {
+                if (purchase.productId.equals(sku)) {
+                    return result(RESULT_ITEM_ALREADY_OWNED);
+                }
+            }
+        }
+        // there is no purchase activity to launch
+        return result(RESULT_BILLING_UNAVAILABLE);
+    }
+
+    @Override
+    public Bundle getPurchases(int apiVersion, String packageName, String type,
+                               String continuationToken)
+            throws RemoteException {
+        Integer injected = beginCall(Call.GET_PURCHASES);
+        if (injected != null) return result(injected);
+        int start = 0;
+        if (continuationToken != null) {
+            try {
+                start = Integer.parseInt(continuationToken);
+            } catch (NumberFormatException e) {
+                return result(RESULT_DEVELOPER_ERROR);
+            }
+        }
+        ArrayList<String> items = new ArrayList<>();
+        ArrayList<String> data = new ArrayList<>();
+        ArrayList<String> signatures = new ArrayList<>();
+        int pageSize = mPageSize;
+        int total;
+        synchronized (this) {
+            List<FakePurchase> purchases =
+                    new ArrayList<>(purchasesOf(type).values());
+            total = purchases.size();
+            for (int i = start; i < Math.min(total, start + pageSize); i++) {
+                FakePurchase purchase = purchases.get(i);
+                items.add(purchase.productId);
+                data.add(purchase.json);
+                signatures.add(purchase.signature);
+            }
+        }
+        Bundle result = result(RESULT_OK);
+        result.putStringArrayList(INAPP_PURCHASE_ITEM_LIST, items);
+        result.putStringArrayList(INAPP_PURCHASE_DATA_LIST, data);
+        result.putStringArrayList(INAPP_DATA_SIGNATURE_LIST, signatures);
+        if (start + pageSize < total) {
+            result.putString(INAPP_CONTINUATION_TOKEN,
+                    Integer.toString(start + pageSize));
+        }
+        return result;
+    }
+
+    @Override
+    public int consumePurchase(int apiVersion, String packageName,
+                               String purchaseToken) throws RemoteException {
+        Integer injected = beginCall(Call.CONSUME_PURCHASE);
+        if (injected != null) return injected;
+        synchronized (this) {
+            FakePurchase removed = purchasesOf(Product.MANAGED_PRODUCT)
+                    .remove(purchaseToken);
+            return removed != null ? RESULT_OK : RESULT_ITEM_NOT_OWNED;
+        }
+    }
+
+    private FakePurchase createPurchase(String productType, String productId,
+                                        String developerPayload) {
+        if (productType == null || productId == null) {
+            throw new IllegalArgumentException(
+                    "productType and productId may not be null");
+        }
+        int order = mNextOrder.getAndIncrement();
+        String token = "token." + productType + "." + productId + "." + order;
+        try {
+            JSONObject json = new JSONObject();
+            json.put("orderId", "12999763169054705758." + order);
+            json.put("packageName", mPackageName);
+            json.put("productId", productId);
+            json.put("purchaseTime", System.currentTimeMillis());
+            json.put("purchaseState", 0);
+            if (developerPayload != null) {
+                json.put("developerPayload", developerPayload);
+            }
+            json.put("purchaseToken", token);
+            String data = json.toString();
+            FakePurchase purchase = new FakePurchase(productId, token, data,
+                    sign(data));
+            synchronized (this) {
+                purchasesOf(productType).put(token, purchase);
+            }
+            return purchase;
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private String sign(String data) {
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(mPrivateKey);
+            signature.update(data.getBytes("UTF-8"));
+            return Base64.encodeToString(signature.sign(), Base64.NO_WRAP);
+        } catch (GeneralSecurityException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void inject(Call call, int result, int count) {
+        if (call == null) {
+            throw new IllegalArgumentException("call may not be null");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be positive");
+        }
+        LinkedList<Integer> injected = mInjected.get(call);
+        synchronized (injected) {
+            for (int i = 0; i < count; i++) {
+                injected.add(result);
+            }
+        }
+    }
+
+    /**
+     * Counts and delays a call, and returns the response code injected for
+     * it, if any.
+     */
+    private Integer beginCall(Call call) throws DeadObjectException {
+        mCallCounts.get(call).incrementAndGet();
+        long latency = mLatency;
+        if (latency > 0) SystemClock.sleep(latency);
+        LinkedList<Integer> injected = mInjected.get(call);
+        Integer result;
+        synchronized (injected) {
+            result = injected.poll();
+        }
+        if (result != null && result == DEAD_OBJECT) {
+            throw new DeadObjectException();
+        }
+        return result;
+    }
+
+    private static Bundle result(int responseCode) {
+        Bundle result = new Bundle();
+        result.putInt(RESPONSE_CODE, responseCode);
+        return result;
+    }
+
+    private Map<String, String> productsOf(String productType) {
+        Map<String, String> products = mProducts.get(productType);
+        if (products == null) {
+            products = new LinkedHashMap<>();
+            mProducts.put(productType, products);
+        }
+        return products;
+    }
+
+    private Map<String, FakePurchase> purchasesOf(String productType) {
+        Map<String, FakePurchase> purchases = mPurchases.get(productType);
+        if (purchases == null) {
+            purchases = new LinkedHashMap<>();
+            mPurchases.put(productType, purchases);
+        }
+        return purchases;
+    }
+}
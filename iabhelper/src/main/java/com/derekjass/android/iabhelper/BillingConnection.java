@@ -0,0 +1,706 @@
+package com.derekjass.android.iabhelper;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.ResolveInfo;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.android.vending.billing.IInAppBillingService;
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+import com.derekjass.android.iabhelper.BillingMetrics.Operation;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A process-wide connection to the Google Play billing service that is shared
+ * by every {@link BillingHelper}. The service is bound when the first helper
+ * connects, and unbound once the last connected helper disconnects. All
+ * helpers share the same binder while connected.
+ * <p/>
+ * Requests made before the service is bound wait in a queue without holding
+ * a thread, and are handed to their executors once the service connects.
+ * Requests that wait longer than the bind timeout fail with
+ * {@link BillingError#SERVICE_TIMEOUT}, or with
+ * {@link BillingError#REQUEST_REJECTED} if the service is bound and only
+ * their executor had no room for them.
+ * <p/>
+ * If the billing service disconnects, for instance because the Play Store was
+ * updated, the connection rebinds with an exponential backoff. Idempotent
+ * requests that fail because the service died are queued again and retried
+ * on the new binder.
+ * <p/>
+ * A connection may also be created for a service implementation given
+ * directly, such as a fake service used for testing, in which case the
+ * service is used without binding to the Play Store.
+ */
+final class BillingConnection {
+
+    /**
+     * A request that needs the billing service.
+     */
+    abstract static class ServiceTask {
+        private int mRetries;
+
+        /**
+         * Makes the request. Called on a thread of the executor the task was
+         * submitted to.
+         *
+         * @param service the bound billing service
+         * @throws RemoteException if the billing service failed
+         */
+        abstract void run(IInAppBillingService service)
+                throws RemoteException;
+
+        /**
+         * Called when the request could not be made, or when
+         * {@link #run(IInAppBillingService)} threw a {@link RemoteException}
+         * or a {@link RuntimeException}. May be called on any thread.
+         *
+         * @param error the reason the request failed
+         */
+        abstract void onError(BillingError error);
+
+        /**
+         * Returns whether the request may be made again if the billing
+         * service dies while it is running. Tasks that return {@code true}
+         * must leave themselves ready to run again when
+         * {@link #run(IInAppBillingService)} throws a
+         * {@link DeadObjectException}.
+         *
+         * @return {@code true} if the request is safe to retry
+         */
+        boolean isIdempotent() {
+            return false;
+        }
+    }
+
+    private static final class PendingTask {
+        final Executor executor;
+        final ServiceTask task;
+        final long deadline;
+        // position in the queue, kept when a rejected task is put back
+        final long sequence;
+
+        PendingTask(Executor executor, ServiceTask task, long deadline,
+                    long sequence) {
+            this.executor = executor;
+            this.task = task;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final long DEFAULT_BIND_TIMEOUT = 10000;
+    private static final long INITIAL_REBIND_DELAY = 1000;
+    private static final long MAX_REBIND_DELAY = 60000;
+    private static final int MAX_RETRIES = 3;
+
+    private static BillingConnection sInstance;
+    private static final Map<IInAppBillingService,
+            WeakReference<BillingConnection>> sFixedInstances =
+            new WeakHashMap<>();
+    private static volatile long sBindTimeout = DEFAULT_BIND_TIMEOUT;
+    // set on a thread while it runs a task of any connection
+    private static final ThreadLocal<Boolean> sRunningTask =
+            new ThreadLocal<>();
+
+    private final Context mContext;
+    private final IInAppBillingService mFixedService;
+    private final ServiceConnection mServiceConnection;
+    private final Handler mHandler;
+    private final Runnable mTimeoutCheck;
+    private final Runnable mRebind;
+    private int mRefCount;
+    private boolean mServiceAvailable;
+    private Intent mBindIntent;
+    private boolean mRebindScheduled;
+    private long mRebindDelay;
+    private long mBindStart;
+    private volatile IInAppBillingService mService;
+    private final LinkedList<PendingTask> mPendingTasks;
+    private long mNextSequence;
+    private boolean mTimeoutScheduled;
+    private boolean mDispatching;
+    private boolean mDispatchRequested;
+    private final Map<String, PurchaseQuery> mPurchaseQueries;
+    // guarded by mPurchaseQueries
+    private final Map<String, Integer> mPurchaseGenerations;
+    private final ProductCache mProductCache;
+
+    private BillingConnection(Context context,
+                              IInAppBillingService fixedService) {
+        mContext = context;
+        mFixedService = fixedService;
+        mHandler = new Handler(Looper.getMainLooper());
+        mPendingTasks = new LinkedList<>();
+        mRebindDelay = INITIAL_REBIND_DELAY;
+        mPurchaseQueries = new HashMap<>();
+        mPurchaseGenerations = new HashMap<>();
+        mProductCache = new ProductCache();
+        mServiceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                synchronized (BillingConnection.this) {
+                    mService = null;
+                    scheduleRebind();
+                }
+            }
+
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                connected(IInAppBillingService.Stub.asInterface(service));
+            }
+        };
+        mTimeoutCheck = new Runnable() {
+            @Override
+            public void run() {
+                failExpiredTasks();
+            }
+        };
+        mRebind = new Runnable() {
+            @Override
+            public void run() {
+                rebind();
+            }
+        };
+    }
+
+    /**
+     * Returns the connection shared by all helpers in this process.
+     *
+     * @param context any context, only the application context is retained
+     * @return the shared connection
+     */
+    static synchronized BillingConnection getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BillingConnection(context.getApplicationContext(),
+                    null);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the connection shared by all helpers using the given service
+     * implementation. The service is used directly instead of binding to the
+     * Play Store.
+     *
+     * @param context any context, only the application context is retained
+     * @param service service implementation to use
+     * @return the shared connection for the service
+     */
+    static synchronized BillingConnection getInstance(
+            Context context, IInAppBillingService service) {
+        WeakReference<BillingConnection> reference =
+                sFixedInstances.get(service);
+        BillingConnection connection =
+                reference != null ? reference.get() : null;
+        if (connection == null) {
+            connection = new BillingConnection(context.getApplicationContext(),
+                    service);
+            sFixedInstances.put(service, new WeakReference<>(connection));
+        }
+        return connection;
+    }
+
+    /**
+     * Registers a new user of the connection, binding to the billing service
+     * if this is the first one.
+     *
+     * @return {@code true} if the billing service is available on the device
+     */
+    synchronized boolean acquire() {
+        if (mRefCount++ > 0) return mServiceAvailable;
+        if (mFixedService != null) {
+            mServiceAvailable = true;
+            mService = mFixedService;
+            return true;
+        }
+        mBindIntent = new Intent(
+                "com.android.vending.billing.InAppBillingService.BIND");
+        mBindIntent.setPackage("com.android.vending");
+        List<ResolveInfo> services = mContext.getPackageManager()
+                .queryIntentServices(mBindIntent, 0);
+        mServiceAvailable = services != null && !services.isEmpty();
+        if (mServiceAvailable) {
+            mBindStart = System.nanoTime();
+            mContext.bindService(mBindIntent, mServiceConnection,
+                    Context.BIND_AUTO_CREATE);
+        }
+        return mServiceAvailable;
+    }
+
+    /**
+     * Unregisters a user of the connection, unbinding from the billing service
+     * if this was the last one. Requests still waiting for the service fail
+     * with {@link BillingError#REMOTE_EXCEPTION}.
+     */
+    void release() {
+        List<PendingTask> pending;
+        synchronized (this) {
+            if (mRefCount == 0) {
+                throw new IllegalStateException(
+                        "release() called without matching acquire()");
+            }
+            if (--mRefCount > 0 || !mServiceAvailable) return;
+            if (mFixedService == null) {
+                mContext.unbindService(mServiceConnection);
+            }
+            mService = null;
+            mHandler.removeCallbacks(mRebind);
+            mRebindScheduled = false;
+            mRebindDelay = INITIAL_REBIND_DELAY;
+            pending = new ArrayList<>(mPendingTasks);
+            mPendingTasks.clear();
+        }
+        for (PendingTask task : pending) {
+            dequeued();
+            task.task.onError(BillingError.REMOTE_EXCEPTION);
+        }
+    }
+
+    /**
+     * Sets how long requests may wait for the billing service to be bound
+     * before they fail. Only affects requests made after this call.
+     *
+     * @param timeout timeout in milliseconds
+     */
+    static void setBindTimeout(long timeout) {
+        sBindTimeout = timeout;
+    }
+
+    /**
+     * Returns the package name of the application, required by every billing
+     * request.
+     *
+     * @return the application package name
+     */
+    String getPackageName() {
+        return mContext.getPackageName();
+    }
+
+    /**
+     * Returns the product cache shared by all helpers in this process.
+     *
+     * @return the shared product cache
+     */
+    ProductCache getProductCache() {
+        return mProductCache;
+    }
+
+    /**
+     * Runs the task on the executor once the billing service is bound. If the
+     * service is bound already the task is submitted right away, otherwise it
+     * waits in the pending queue until the service connects or the bind
+     * timeout passes.
+     * <p/>
+     * Once the service connects, pending tasks are handed to their executors
+     * in order for as long as the executors accept them. Tasks that a bounded
+     * executor can't take yet stay pending, and are handed over as earlier
+     * tasks finish, so a burst of requests made before the service connected
+     * isn't rejected all at once. Later tasks for the same executor queue
+     * behind them, while tasks for other executors are not held up. Tasks
+     * still turned away when the bind timeout passes fail with
+     * {@link BillingError#REQUEST_REJECTED}.
+     *
+     * @param executor executor to run the task on
+     * @param task     task to run
+     */
+    void execute(Executor executor, ServiceTask task) {
+        Metrics.taskQueued();
+        boolean queued = false;
+        synchronized (this) {
+            if (mService == null || hasPendingTasks(executor)) {
+                long timeout = sBindTimeout;
+                mPendingTasks.add(new PendingTask(executor, task,
+                        SystemClock.elapsedRealtime() + timeout,
+                        mNextSequence++));
+                scheduleTimeoutCheck();
+                if (mService == null) return;
+                queued = true;
+            }
+        }
+        if (queued) {
+            dispatchPendingTasks();
+        } else {
+            dispatch(executor, task);
+        }
+    }
+
+    /**
+     * Runs work that doesn't need the billing service on the executor right
+     * away, counting it in the queue depth until it starts like a task.
+     *
+     * @param executor executor to run the work on
+     * @param work     work to run
+     * @return {@code false} if the executor rejected the work
+     */
+    boolean executeLocal(Executor executor, final Runnable work) {
+        Metrics.taskQueued();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dequeued();
+                    Boolean outer = enterTask();
+                    try {
+                        work.run();
+                    } finally {
+                        exitTask(outer);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            dequeued();
+            return false;
+        }
+    }
+
+    private void scheduleTimeoutCheck() {
+        if (mTimeoutScheduled || mPendingTasks.isEmpty()) return;
+        mTimeoutScheduled = true;
+        mHandler.postDelayed(mTimeoutCheck, mPendingTasks.getFirst().deadline
+                - SystemClock.elapsedRealtime());
+    }
+
+    private boolean hasPendingTasks(Executor executor) {
+        for (PendingTask task : mPendingTasks) {
+            if (task.executor == executor) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hands pending tasks to their executors in order while the service is
+     * bound. Once an executor rejects a task, that task and the later tasks
+     * for the same executor stay pending until another task finishes or they
+     * time out, but the tasks of other executors are still handed over.
+     * <p/>
+     * Only one thread dispatches at a time, so every executor receives its
+     * tasks in order. A call made while another thread is dispatching makes
+     * that thread go over the queue again.
+     */
+    private void dispatchPendingTasks() {
+        synchronized (this) {
+            if (mDispatching) {
+                mDispatchRequested = true;
+                return;
+            }
+            mDispatching = true;
+        }
+        boolean done = false;
+        try {
+            while (!done) {
+                dispatchQueue();
+                synchronized (this) {
+                    done = !mDispatchRequested;
+                    mDispatchRequested = false;
+                    if (done) mDispatching = false;
+                }
+            }
+        } finally {
+            if (!done) {
+                synchronized (this) {
+                    mDispatching = false;
+                }
+            }
+        }
+    }
+
+    private void dispatchQueue() {
+        List<PendingTask> pending;
+        synchronized (this) {
+            if (mService == null || mPendingTasks.isEmpty()) return;
+            pending = new ArrayList<>(mPendingTasks);
+        }
+        // executors that turned a task away in this pass
+        Set<Executor> full = new HashSet<>();
+        for (PendingTask task : pending) {
+            if (full.contains(task.executor)) continue;
+            synchronized (this) {
+                if (mService == null) return;
+                // it may have expired in the meantime
+                if (!mPendingTasks.remove(task)) continue;
+            }
+            if (tryDispatch(task.executor, task.task)) continue;
+            full.add(task.executor);
+            boolean released;
+            synchronized (this) {
+                released = mRefCount == 0;
+                if (!released) {
+                    putBack(task);
+                    scheduleTimeoutCheck();
+                }
+            }
+            if (released) {
+                dequeued();
+                task.task.onError(BillingError.REMOTE_EXCEPTION);
+            }
+        }
+    }
+
+    private void putBack(PendingTask task) {
+        ListIterator<PendingTask> it = mPendingTasks.listIterator();
+        while (it.hasNext()) {
+            if (it.next().sequence > task.sequence) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(task);
+    }
+
+    private void dispatch(Executor executor, ServiceTask task) {
+        if (!tryDispatch(executor, task)) {
+            dequeued();
+            task.onError(BillingError.REQUEST_REJECTED);
+        }
+    }
+
+    private boolean tryDispatch(final Executor executor,
+                                final ServiceTask task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dequeued();
+                    Boolean outer = enterTask();
+                    // the service may have been unbound while queued
+                    IInAppBillingService service = mService;
+                    if (service == null) {
+                        task.onError(BillingError.REMOTE_EXCEPTION);
+                        exitTask(outer);
+                        return;
+                    }
+                    try {
+                        task.run(Metrics.instrument(service));
+                    } catch (DeadObjectException e) {
+                        serviceDied(service);
+                        if (task.isIdempotent()
+                                && task.mRetries++ < MAX_RETRIES) {
+                            // waits in the pending queue for the new binder
+                            BillingConnection.this.execute(executor, task);
+                        } else {
+                            task.onError(BillingError.REMOTE_EXCEPTION);
+                        }
+                    } catch (RemoteException e) {
+                        task.onError(BillingError.REMOTE_EXCEPTION);
+                    } catch (RuntimeException e) {
+                        // e.g. malformed data from the service; the task
+                        // must still unregister and answer its callers
+                        task.onError(BillingError.ERROR);
+                    } finally {
+                        exitTask(outer);
+                        // a thread is free again for a task that was turned
+                        // away
+                        dispatchPendingTasks();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static Boolean enterTask() {
+        Boolean outer = sRunningTask.get();
+        sRunningTask.set(Boolean.TRUE);
+        return outer;
+    }
+
+    private static void exitTask(Boolean outer) {
+        if (outer == null) sRunningTask.remove();
+    }
+
+    /**
+     * Returns whether the calling thread is running a task, or a callback
+     * delivered directly by one. Such a thread must not block waiting for
+     * another task, which may need the same executor to run.
+     *
+     * @return {@code true} if the calling thread is running a task
+     */
+    static boolean isRunningTask() {
+        return sRunningTask.get() != null;
+    }
+
+    private static void dequeued() {
+        Metrics.taskDequeued();
+    }
+
+    /**
+     * Marks the service as dead after a call to it failed with a
+     * {@link DeadObjectException}, unless it has already been replaced.
+     */
+    private synchronized void serviceDied(IInAppBillingService service) {
+        if (mService != service) return;
+        mService = null;
+        scheduleRebind();
+    }
+
+    private void scheduleRebind() {
+        if (mRefCount == 0 || !mServiceAvailable || mRebindScheduled) return;
+        mRebindScheduled = true;
+        mHandler.postDelayed(mRebind, mRebindDelay);
+        mRebindDelay = Math.min(mRebindDelay * 2, MAX_REBIND_DELAY);
+    }
+
+    private void rebind() {
+        synchronized (this) {
+            if (!mRebindScheduled) return;
+            mRebindScheduled = false;
+            if (mRefCount == 0 || mService != null) return;
+            mBindStart = System.nanoTime();
+            if (mFixedService == null) {
+                mContext.unbindService(mServiceConnection);
+                mContext.bindService(mBindIntent, mServiceConnection,
+                        Context.BIND_AUTO_CREATE);
+                // keep trying, further apart each time, until it connects
+                scheduleRebind();
+                return;
+            }
+        }
+        // a service given directly is never unbound, only taken back into use
+        connected(mFixedService);
+    }
+
+    private void connected(IInAppBillingService service) {
+        synchronized (this) {
+            if (mRefCount == 0) return;
+            mService = service;
+            Metrics.operationCompleted(Operation.BIND, mBindStart, null);
+            mHandler.removeCallbacks(mRebind);
+            mRebindScheduled = false;
+            mRebindDelay = INITIAL_REBIND_DELAY;
+        }
+        dispatchPendingTasks();
+    }
+
+    private void failExpiredTasks() {
+        // an executor may have room again for the tasks it turned away
+        dispatchPendingTasks();
+        List<PendingTask> expired = new ArrayList<>();
+        BillingError error;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            // deadlines only differ if the timeout changed, so stop at the
+            // first task that hasn't expired
+            while (!mPendingTasks.isEmpty()
+                    && mPendingTasks.getFirst().deadline <= now) {
+                expired.add(mPendingTasks.removeFirst());
+            }
+            // while the service is bound, tasks only wait because their
+            // executor turned them away
+            error = mService != null ? BillingError.REQUEST_REJECTED
+                    : BillingError.SERVICE_TIMEOUT;
+            if (!expired.isEmpty() && mService == null) {
+                Metrics.operationCompleted(Operation.BIND, mBindStart,
+                        BillingError.SERVICE_TIMEOUT);
+            }
+            if (mPendingTasks.isEmpty()) {
+                mTimeoutScheduled = false;
+            } else {
+                mHandler.postDelayed(mTimeoutCheck,
+                        mPendingTasks.getFirst().deadline - now);
+            }
+        }
+        for (PendingTask task : expired) {
+            dequeued();
+            task.task.onError(error);
+        }
+    }
+
+    /**
+     * Queries the purchases of the given product type, joining a query that
+     * is already in flight for that type if there is one. The listener is
+     * called on a worker thread.
+     *
+     * @param productType product type to query
+     * @param validator   validator used to verify the signatures, may be
+     *                    {@code null}
+     * @param executor    executor used to run the query and verify its pages,
+     *                    if a new query is started
+     * @param listener    listener to receive the result on a worker thread
+     */
+    void queryPurchases(String productType, SignatureValidator validator,
+                        Executor executor,
+                        BillingHelper.OnPurchasesQueriedListener listener) {
+        PurchaseQuery query;
+        boolean start = false;
+        synchronized (mPurchaseQueries) {
+            query = mPurchaseQueries.get(productType);
+            if (query == null) {
+                query = new PurchaseQuery(this, productType, executor);
+                mPurchaseQueries.put(productType, query);
+                start = true;
+            }
+            query.addWaiter(validator, listener);
+        }
+        if (start) execute(executor, query);
+    }
+
+    /**
+     * Returns the generation of the purchases of the given product type, which
+     * changes every time {@link #invalidatePurchases(String)} is called for
+     * it. Helpers cache purchases along with the generation they were queried
+     * at, and discard them once it changes.
+     *
+     * @param productType product type of the purchases
+     * @return the current generation
+     */
+    int getPurchaseGeneration(String productType) {
+        synchronized (mPurchaseQueries) {
+            Integer generation = mPurchaseGenerations.get(productType);
+            return generation != null ? generation : 0;
+        }
+    }
+
+    /**
+     * Marks the purchases of the given product type as changed. The
+     * purchases cached by every helper of the type become stale, and the
+     * in-flight query of the type, if any, is detached so that later callers
+     * start a new query instead of joining one that may have read the
+     * purchases before they changed. Callers that already joined the detached
+     * query still receive its result.
+     *
+     * @param productType product type whose purchases changed
+     */
+    void invalidatePurchases(String productType) {
+        synchronized (mPurchaseQueries) {
+            mPurchaseQueries.remove(productType);
+            mPurchaseGenerations.put(productType,
+                    getPurchaseGeneration(productType) + 1);
+        }
+    }
+
+    /**
+     * Unregisters a finished query so that no more callers may join it.
+     *
+     * @param query the finished query
+     */
+    void completePurchaseQuery(PurchaseQuery query) {
+        synchronized (mPurchaseQueries) {
+            if (mPurchaseQueries.get(query.getProductType()) == query) {
+                mPurchaseQueries.remove(query.getProductType());
+            }
+        }
+    }
+}
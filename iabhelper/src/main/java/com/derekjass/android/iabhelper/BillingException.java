@@ -0,0 +1,37 @@
+package com.derekjass.android.iabhelper;
+
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+
+/**
+ * Thrown when a billing request fails. Used by {@link BillingFuture} and the
+ * blocking methods of {@link BillingHelper}, where the error can't be
+ * delivered to an {@link BillingHelper.OnErrorListener}.
+ */
+public class BillingException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BillingError mError;
+
+    /**
+     * Creates an exception for the given error.
+     *
+     * @param error the error that caused the request to fail
+     */
+    public BillingException(BillingError error) {
+        super(error == null ? null : error.toString());
+        if (error == null) {
+            throw new IllegalArgumentException("error may not be null");
+        }
+        mError = error;
+    }
+
+    /**
+     * Returns the error that caused the request to fail.
+     *
+     * @return the error of the failed request
+     */
+    public BillingError getError() {
+        return mError;
+    }
+}
@@ -0,0 +1,453 @@
+package com.derekjass.android.iabhelper;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending result of a billing request, returned by the future based
+ * methods of {@link BillingHelper}.
+ * <p/>
+ * A future is completed directly by the worker thread that finished the
+ * request, without going through the main thread. Functions passed to
+ * {@link #then(Function)} and {@link #thenCompose(AsyncFunction)} run on that
+ * same thread, so a flow such as querying purchases, consuming one and
+ * querying again runs entirely in the background. Results are only brought
+ * back to the main thread by {@link #addCallback(Callback)}.
+ * <p/>
+ * A request that can be answered without the billing service, for instance
+ * from the purchase cache or because the service is unavailable, returns a
+ * future that is already done. Functions added to a done future run right
+ * away on the thread adding them, which may be the main thread.
+ * <p/>
+ * If a function throws a {@link RuntimeException}, the future it returned
+ * fails with that exception. {@link #get()} reports it as the cause of an
+ * {@link ExecutionException}, {@link #await()} rethrows it, and callbacks
+ * added with {@link #addCallback(Callback)} have it thrown on their executor
+ * instead of being called.
+ * <p/>
+ * The blocking methods {@link #get()} and {@link #await()} may not be called
+ * while the future is still pending on the main thread, or on a thread that
+ * is running a billing request or a callback delivered directly by one.
+ * Those threads may be needed to complete the request. Cancelling a future
+ * does not cancel the request to the billing service, it only discards its
+ * result.
+ *
+ * @param <T> type of the result
+ */
+public class BillingFuture<T> implements Future<T> {
+
+    /**
+     * Callback to receive the outcome of a future.
+     *
+     * @param <T> type of the result
+     */
+    public interface Callback<T> {
+        /**
+         * Called when the request completed successfully.
+         *
+         * @param result result of the request
+         */
+        public void onSuccess(T result);
+
+        /**
+         * Called when the request failed.
+         *
+         * @param e exception holding the error of the request
+         */
+        public void onFailure(BillingException e);
+    }
+
+    /**
+     * Transforms the result of a future.
+     *
+     * @param <T> type of the input
+     * @param <U> type of the output
+     */
+    public interface Function<T, U> {
+        /**
+         * Transforms the result of a future.
+         *
+         * @param input result of the future
+         * @return the transformed result
+         * @throws BillingException to fail the resulting future
+         */
+        public U apply(T input) throws BillingException;
+    }
+
+    /**
+     * Starts a request using the result of a future.
+     *
+     * @param <T> type of the input
+     * @param <U> type of the result of the new request
+     */
+    public interface AsyncFunction<T, U> {
+        /**
+         * Starts a request using the result of a future.
+         *
+         * @param input result of the future
+         * @return the future of the new request
+         * @throws BillingException to fail the resulting future
+         */
+        public BillingFuture<U> apply(T input) throws BillingException;
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final Handler sMainHandler =
+            new Handler(Looper.getMainLooper());
+
+    private int mState;
+    private T mResult;
+    // a BillingException, or a RuntimeException thrown by a function
+    private Exception mException;
+    private List<Runnable> mListeners;
+
+    BillingFuture() {
+        mState = PENDING;
+    }
+
+    boolean set(T result) {
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mResult = result;
+            mState = SUCCEEDED;
+        }
+        complete();
+        return true;
+    }
+
+    boolean setException(BillingException e) {
+        return fail(e);
+    }
+
+    private boolean fail(Exception e) {
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mException = e;
+            mState = FAILED;
+        }
+        complete();
+        return true;
+    }
+
+    private void complete() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            notifyAll();
+            listeners = mListeners;
+            mListeners = null;
+        }
+        if (listeners == null) return;
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs the listener as soon as this future is done, on the thread that
+     * completes it, or immediately if it is already done.
+     */
+    private void addListener(Runnable listener) {
+        synchronized (this) {
+            if (mState == PENDING) {
+                if (mListeners == null) mListeners = new ArrayList<>(2);
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Passes the outcome of this future on to another one.
+     */
+    private void forward(final BillingFuture<T> target) {
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BillingFuture.this) {
+                    if (mState == CANCELLED) {
+                        target.cancel(false);
+                        return;
+                    }
+                }
+                if (mState == FAILED) {
+                    target.fail(mException);
+                } else {
+                    target.set(mResult);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns a future for the result of this future transformed by the given
+     * function. The function runs on the thread that completes this future.
+     * If this future fails or is cancelled, so does the returned one, and the
+     * function is not called.
+     *
+     * @param function function to transform the result
+     * @param <U>      type of the transformed result
+     * @return a future of the transformed result
+     */
+    public <U> BillingFuture<U> then(final Function<? super T, U> function) {
+        if (function == null) {
+            throw new IllegalArgumentException("function may not be null");
+        }
+        final BillingFuture<U> future = new BillingFuture<>();
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                switch (mState) {
+                    case CANCELLED:
+                        future.cancel(false);
+                        return;
+                    case FAILED:
+                        future.fail(mException);
+                        return;
+                }
+                try {
+                    future.set(function.apply(mResult));
+                } catch (BillingException e) {
+                    future.setException(e);
+                } catch (RuntimeException e) {
+                    future.fail(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a future for the result of the request started by the given
+     * function with the result of this future. The function runs on the
+     * thread that completes this future. If this future fails or is
+     * cancelled, so does the returned one, and the function is not called.
+     *
+     * @param function function to start the next request
+     * @param <U>      type of the result of the next request
+     * @return a future of the result of the next request
+     */
+    public <U> BillingFuture<U> thenCompose(
+            final AsyncFunction<? super T, U> function) {
+        if (function == null) {
+            throw new IllegalArgumentException("function may not be null");
+        }
+        final BillingFuture<U> future = new BillingFuture<>();
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                switch (mState) {
+                    case CANCELLED:
+                        future.cancel(false);
+                        return;
+                    case FAILED:
+                        future.fail(mException);
+                        return;
+                }
+                try {
+                    BillingFuture<U> next = function.apply(mResult);
+                    if (next == null) {
+                        throw new IllegalStateException(
+                                "function returned a null future");
+                    }
+                    next.forward(future);
+                } catch (BillingException e) {
+                    future.setException(e);
+                } catch (RuntimeException e) {
+                    future.fail(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Delivers the outcome of this future to the callback in the main thread
+     * of the app. Nothing is delivered if the future is cancelled.
+     *
+     * @param callback callback to receive the outcome
+     */
+    public void addCallback(Callback<? super T> callback) {
+        addCallback(callback, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                sMainHandler.post(command);
+            }
+        });
+    }
+
+    /**
+     * Delivers the outcome of this future to the callback using the given
+     * executor, such as {@link BillingHelper#DIRECT_EXECUTOR}. Nothing is
+     * delivered if the future is cancelled.
+     *
+     * @param callback callback to receive the outcome
+     * @param executor executor to run the callback
+     */
+    public void addCallback(final Callback<? super T> callback,
+                            final Executor executor) {
+        if (callback == null || executor == null) {
+            throw new IllegalArgumentException(
+                    "callback and executor may not be null");
+        }
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (mState == CANCELLED) return;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mState != FAILED) {
+                            callback.onSuccess(mResult);
+                        } else if (mException instanceof BillingException) {
+                            callback.onFailure((BillingException) mException);
+                        } else {
+                            throw (RuntimeException) mException;
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Waits for the request to complete and returns its result.
+     *
+     * @return the result of the request
+     * @throws BillingException      if the request failed
+     * @throws InterruptedException  if the thread was interrupted while
+     *                               waiting
+     * @throws CancellationException if the future was cancelled
+     * @throws IllegalStateException if called on a thread that may not block
+     *                               before the future is done
+     */
+    public T await() throws BillingException, InterruptedException {
+        waitDone();
+        if (mState == FAILED && mException instanceof BillingException) {
+            throw (BillingException) mException;
+        }
+        return getOrThrow();
+    }
+
+    /**
+     * Waits at most the given time for the request to complete and returns
+     * its result.
+     *
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return the result of the request
+     * @throws BillingException      if the request failed
+     * @throws InterruptedException  if the thread was interrupted while
+     *                               waiting
+     * @throws TimeoutException      if the request did not complete in time
+     * @throws CancellationException if the future was cancelled
+     * @throws IllegalStateException if called on a thread that may not block
+     *                               before the future is done
+     */
+    public T await(long timeout, TimeUnit unit)
+            throws BillingException, InterruptedException, TimeoutException {
+        waitDone(timeout, unit);
+        if (mState == FAILED && mException instanceof BillingException) {
+            throw (BillingException) mException;
+        }
+        return getOrThrow();
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        waitDone();
+        if (mState == FAILED) throw new ExecutionException(mException);
+        return getOrThrow();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        waitDone(timeout, unit);
+        if (mState == FAILED) throw new ExecutionException(mException);
+        return getOrThrow();
+    }
+
+    private synchronized void waitDone() throws InterruptedException {
+        if (mState == PENDING) checkCanBlock();
+        while (mState == PENDING) {
+            wait();
+        }
+    }
+
+    private synchronized void waitDone(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (mState == PENDING) checkCanBlock();
+        while (mState == PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Returns the result of a done future, throwing if it was cancelled or a
+     * function failed with a runtime exception.
+     */
+    private T getOrThrow() {
+        switch (mState) {
+            case CANCELLED:
+                throw new CancellationException();
+            case FAILED:
+                throw (RuntimeException) mException;
+            default:
+                return mResult;
+        }
+    }
+
+    /**
+     * Throws if the calling thread may not block waiting for a billing
+     * request: the main thread, and threads running a billing request or a
+     * callback delivered directly by one, which the request may need.
+     */
+    static void checkCanBlock() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException(
+                    "Cannot wait for a billing request on the main thread");
+        }
+        if (BillingConnection.isRunningTask()
+                || BillingHelper.isWorkerThread()) {
+            throw new IllegalStateException("Cannot wait for a billing "
+                    + "request on a thread that runs billing requests");
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mState != PENDING) return false;
+            mState = CANCELLED;
+        }
+        complete();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != PENDING;
+    }
+}
@@ -2,31 +2,45 @@ package com.derekjass.android.iabhelper;
 
 import android.app.Activity;
 import android.app.PendingIntent;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.ServiceConnection;
-import android.content.pm.ResolveInfo;
 import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.Handler;
-import android.os.IBinder;
 import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import com.android.vending.billing.IInAppBillingService;
+import com.derekjass.android.iabhelper.BillingConnection.ServiceTask;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A helper class to assist with using the Google Play in-app billing service.
- * This handles all of the operations asynchronously where possible. All
- * callbacks given to the various methods will all be run in the UI thread of
- * the application.
+ * This handles all of the operations asynchronously where possible. By
+ * default, all callbacks given to the various methods will be run in the UI
+ * thread of the application. They may instead be run by another executor,
+ * or directly on the worker thread that completed the request, with
+ * {@link #setCallbackExecutor(Executor)}. Futures returned by methods such as
+ * {@link #queryPurchases()} are completed without going through the UI
+ * thread, see {@link BillingFuture}.
  * <p/>
  * <h1>Setup</h1>
  * <p/>
@@ -47,6 +61,19 @@ import java.util.concurrent.Executors;
  * with the service, a call should be made to {@link #disconnect()} to release
  * any resources no longer needed. These calls are usually made in the
  * onStart/onStop methods of an Activity.
+ * <p/>
+ * All helpers in a process share a single connection to the billing service.
+ * The service is bound when the first helper connects and unbound when the
+ * last connected helper disconnects, so creating many helpers at once does not
+ * result in additional binds. If the billing service goes away while helpers
+ * are connected, for instance when the Play Store is updated, it is bound
+ * again automatically, and product and purchase queries that were interrupted
+ * are retried.
+ * <p/>
+ * Requests are run on a small pool of worker threads shared by every helper,
+ * which outlives any individual connection. A different executor may be used
+ * for all helpers with {@link #setDefaultExecutor(Executor)}, or for a single
+ * helper with {@link #setExecutor(Executor)}.
  *
  * @author Derek Jass
  */
@@ -88,6 +115,23 @@ public class BillingHelper {
         public void onPurchasesQueried(List<Purchase> purchases);
     }
 
+    /**
+     * Callback to deliver the result of a purchase query one page at a time.
+     */
+    public interface OnPurchasePageQueriedListener extends OnErrorListener {
+        /**
+         * Called for every page of purchases returned by the billing service.
+         *
+         * @param purchases the purchases on the page
+         */
+        public void onPurchasePageQueried(List<Purchase> purchases);
+
+        /**
+         * Called after the last page of purchases has been delivered.
+         */
+        public void onPurchaseQueryCompleted();
+    }
+
     /**
      * Callback to deliver the result of a purchase.
      */
@@ -112,6 +156,22 @@ public class BillingHelper {
         public void onPurchaseConsumed(Purchase purchase);
     }
 
+    /**
+     * Callback to deliver the result of a batch consumption request.
+     */
+    public interface OnPurchasesConsumedListener extends OnErrorListener {
+        /**
+         * Called after every purchase of a batch consumption request has been
+         * processed.
+         *
+         * @param consumed the purchases that were consumed
+         * @param failed   the purchases that could not be consumed, mapped to
+         *                 the error that occurred for each
+         */
+        public void onPurchasesConsumed(List<Purchase> consumed,
+                                        Map<Purchase, BillingError> failed);
+    }
+
     /**
      * Enumeration of all the potential errors that may occur while using the
      */
@@ -136,7 +196,8 @@ public class BillingHelper {
          */
         DEVELOPER_ERROR,
         /**
-         * A fatal error occurred during the call to the billing service.
+         * A fatal error occurred during the call to the billing service, or
+         * the service returned a response code that isn't defined here.
          */
         ERROR,
         /**
@@ -165,9 +226,19 @@ public class BillingHelper {
         /**
          * Error when the signature fails a validation check.
          */
-        INVALID_SIGNATURE;
+        INVALID_SIGNATURE,
+        /**
+         * Error when the executor running billing requests refused to accept
+         * the request, usually because its queue is full.
+         */
+        REQUEST_REJECTED,
+        /**
+         * Error when the billing service could not be bound within the bind
+         * timeout set with {@link BillingHelper#setBindTimeout(long)}.
+         */
+        SERVICE_TIMEOUT;
 
-        private static BillingError fromResponseCode(int code) {
+        static BillingError fromResponseCode(int code) {
             switch (code) {
                 case 1:
                     return USER_CANCELED;
@@ -184,50 +255,88 @@ public class BillingHelper {
                 case 8:
                     return ITEM_NOT_OWNED;
                 default:
-                    throw new IllegalArgumentException("Undefined error code: "
-                            + code);
+                    // e.g. 2, the service is unavailable
+                    return ERROR;
             }
         }
     }
 
-    private static final String RESPONSE_CODE = "RESPONSE_CODE";
+    /**
+     * An executor that runs callbacks directly on the thread that completed
+     * the request. See {@link #setCallbackExecutor(Executor)}.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * What an executor returned by
+     * {@link #newBoundedExecutor(int, int, RejectionPolicy)} does with a
+     * request when all of its threads are busy and its queue is full.
+     */
+    public enum RejectionPolicy {
+        /**
+         * The request fails with a {@link BillingError#REQUEST_REJECTED}
+         * error.
+         */
+        ABORT,
+        /**
+         * The request runs on the thread that made it. Requests are usually
+         * made on the main thread, where this blocks the user interface for
+         * the duration of the call to the billing service.
+         */
+        CALLER_RUNS
+    }
+
+    private static final int MAX_SKUS_PER_REQUEST = 20;
+    private static final int DEFAULT_POOL_SIZE = 4;
+    private static final int DEFAULT_MAX_CONCURRENT_CONSUMES = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static Executor sDefaultExecutor;
+
+    static final String RESPONSE_CODE = "RESPONSE_CODE";
     private static final String ITEM_ID_LIST = "ITEM_ID_LIST";
     private static final String DETAILS_LIST = "DETAILS_LIST";
-    private static final String INAPP_CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN";
-    private static final String INAPP_DATA_SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";
-    private static final String INAPP_PURCHASE_DATA_LIST = "INAPP_PURCHASE_DATA_LIST";
+    static final String INAPP_CONTINUATION_TOKEN = "INAPP_CONTINUATION_TOKEN";
+    static final String INAPP_DATA_SIGNATURE_LIST = "INAPP_DATA_SIGNATURE_LIST";
+    static final String INAPP_PURCHASE_DATA_LIST = "INAPP_PURCHASE_DATA_LIST";
     private static final String BUY_INTENT = "BUY_INTENT";
     private static final String INAPP_DATA_SIGNATURE = "INAPP_DATA_SIGNATURE";
     private static final String INAPP_PURCHASE_DATA = "INAPP_PURCHASE_DATA";
 
-    private boolean mConnected;
-    private boolean mServiceAvailable;
+    private volatile boolean mConnected;
+    private volatile boolean mServiceAvailable;
     private String mProductType;
-    private Context mContext;
     private Handler mHandler;
-    private ServiceConnection mConnection;
-    private IInAppBillingService mService;
-    private CountDownLatch mBindLatch;
-    private ExecutorService mExecutor;
-    private SignatureValidator mValidator;
+    private BillingConnection mConnection;
+    private volatile SignatureValidator mValidator;
+    private final Object mCacheLock;
+    private long mPurchaseCacheDuration;
+    private List<Purchase> mCachedPurchases;
+    private long mCacheTime;
+    // generation of the purchases at the connection when they were cached
+    private int mCachedGeneration;
+    private int mCacheGeneration;
+    private final PurchaseSnapshot mSnapshot;
+    private volatile boolean mSnapshotEnabled;
+    private volatile long mProductCacheDuration;
+    private volatile Executor mExecutor;
+    private volatile Executor mCallbackExecutor;
+    private volatile boolean mCoalesceCallbacks;
 
-    private BillingHelper(Context context, String productType) {
+    private BillingHelper(Context context, String productType,
+                          BillingConnection connection) {
         mConnected = false;
         mServiceAvailable = true;
-        mContext = context.getApplicationContext();
         mProductType = productType;
         mHandler = new Handler(Looper.getMainLooper());
-        mConnection = new ServiceConnection() {
-            @Override
-            public void onServiceDisconnected(ComponentName name) {
-            }
-
-            @Override
-            public void onServiceConnected(ComponentName name, IBinder service) {
-                mService = IInAppBillingService.Stub.asInterface(service);
-                mBindLatch.countDown();
-            }
-        };
+        mConnection = connection;
+        mCacheLock = new Object();
+        mSnapshot = new PurchaseSnapshot(context, productType);
     }
 
     /**
@@ -242,7 +351,30 @@ public class BillingHelper {
      * @return a BillingHelper configured to handle managed products
      */
     public static BillingHelper newManagedProductHelper(Context context) {
-        return new BillingHelper(context, "inapp");
+        return new BillingHelper(context, "inapp",
+                BillingConnection.getInstance(context));
+    }
+
+    /**
+     * Returns a new {@code BillingHelper} configured to handle requests for
+     * in-app managed products that are sent to the given implementation of
+     * the billing service instead of the Play Store. No service is bound, and
+     * all helpers created with the same service share a connection to it.
+     * <p/>
+     * This is meant for testing with a fake billing service, such as the
+     * {@code FakeBillingService} of the iabhelper-testing module.
+     *
+     * @param context application context
+     * @param service billing service implementation to use
+     * @return a BillingHelper configured to handle managed products
+     */
+    public static BillingHelper newManagedProductHelper(
+            Context context, IInAppBillingService service) {
+        if (service == null) {
+            throw new IllegalArgumentException("service may not be null");
+        }
+        return new BillingHelper(context, "inapp",
+                BillingConnection.getInstance(context, service));
     }
 
     /**
@@ -255,27 +387,161 @@ public class BillingHelper {
      * @return a BillingHelper configured to handle subscriptions
      */
     public static BillingHelper newSubscriptionHelper(Context context) {
-        return new BillingHelper(context, "subs");
+        return new BillingHelper(context, "subs",
+                BillingConnection.getInstance(context));
+    }
+
+    /**
+     * Returns a new {@code BillingHelper} configured to handle requests for
+     * subscriptions that are sent to the given implementation of the billing
+     * service instead of the Play Store. See
+     * {@link #newManagedProductHelper(Context, IInAppBillingService)}.
+     *
+     * @param context application context
+     * @param service billing service implementation to use
+     * @return a BillingHelper configured to handle subscriptions
+     */
+    public static BillingHelper newSubscriptionHelper(
+            Context context, IInAppBillingService service) {
+        if (service == null) {
+            throw new IllegalArgumentException("service may not be null");
+        }
+        return new BillingHelper(context, "subs",
+                BillingConnection.getInstance(context, service));
+    }
+
+    /**
+     * Sets the executor used to run the requests of every helper that has not
+     * been given its own executor with {@link #setExecutor(Executor)}. Setting
+     * it to {@code null} restores the default pool of worker threads.
+     * <p/>
+     * The executor is never shut down by this library. If it rejects a
+     * request, a {@link BillingError#REQUEST_REJECTED} error is delivered to
+     * the request's listener.
+     *
+     * @param executor executor to run billing requests
+     */
+    public static synchronized void setDefaultExecutor(Executor executor) {
+        sDefaultExecutor = executor;
+    }
+
+    /**
+     * Sets how long requests made before the billing service has been bound
+     * may wait for the bind to complete. Waiting requests don't occupy any
+     * threads, and once the timeout passes they fail with a
+     * {@link BillingError#SERVICE_TIMEOUT} error. The default is 10 seconds.
+     *
+     * @param timeout timeout in milliseconds
+     */
+    public static void setBindTimeout(long timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout may not be negative");
+        }
+        BillingConnection.setBindTimeout(timeout);
+    }
+
+    /**
+     * Installs a {@link BillingMetrics} implementation to receive the latency
+     * of billing service requests and signature validations, the number of
+     * queued requests and the delay of callbacks to the main thread, for every
+     * helper in the process. Setting it to {@code null} stops collecting
+     * metrics.
+     *
+     * @param metrics metrics to record to, may be {@code null}
+     */
+    public static void setMetrics(BillingMetrics metrics) {
+        Metrics.setMetrics(metrics);
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = newExecutor(DEFAULT_POOL_SIZE,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        return sDefaultExecutor;
+    }
+
+    /**
+     * Returns a new executor suitable for {@link #setExecutor(Executor)} or
+     * {@link #setDefaultExecutor(Executor)} that runs requests on at most the
+     * given number of threads. Idle threads are stopped after a short time.
+     * At most queueDepth requests may wait for a thread, and any further
+     * requests are rejected with a {@link BillingError#REQUEST_REJECTED}
+     * error.
+     * <p/>
+     * Requests made before the billing service is bound are not rejected
+     * when it binds: they are handed to the executor as its threads become
+     * free, and only fail with a {@link BillingError#REQUEST_REJECTED} error
+     * if the executor still has no room for them when the bind timeout
+     * passes. Requests for other executors are not held up by them.
+     *
+     * @param threads    maximum number of threads
+     * @param queueDepth maximum number of requests waiting for a thread
+     * @return a bounded executor
+     */
+    public static Executor newBoundedExecutor(int threads, int queueDepth) {
+        return newBoundedExecutor(threads, queueDepth, RejectionPolicy.ABORT);
+    }
+
+    /**
+     * Returns a new executor like {@link #newBoundedExecutor(int, int)} that
+     * handles requests that find its queue full according to the given
+     * policy.
+     *
+     * @param threads    maximum number of threads
+     * @param queueDepth maximum number of requests waiting for a thread
+     * @param policy     what to do with requests when the queue is full
+     * @return a bounded executor
+     */
+    public static Executor newBoundedExecutor(int threads, int queueDepth,
+                                              RejectionPolicy policy) {
+        if (threads < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException(
+                    "threads and queueDepth must be positive");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy may not be null");
+        }
+        ThreadPoolExecutor executor = newExecutor(threads,
+                new ArrayBlockingQueue<Runnable>(queueDepth));
+        if (policy == RejectionPolicy.CALLER_RUNS) {
+            executor.setRejectedExecutionHandler(
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads,
+                                                  BlockingQueue<Runnable> queue) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new WorkerThread(r, "BillingHelper #"
+                                + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     /**
      * Initiates the connection to the Google Play billing service. Must be
      * called prior to making any billing requests. This is typically done in
      * the onStart() method of an Activity.
+     * <p/>
+     * The connection is shared with every other connected helper in the
+     * process, so this only binds to the service if no other helper is
+     * currently connected.
      */
     public synchronized void connect() {
         if (mConnected) return;
-        Intent intent = new Intent(
-                "com.android.vending.billing.InAppBillingService.BIND");
-        intent.setPackage("com.android.vending");
-        List<ResolveInfo> services = mContext.getPackageManager()
-                .queryIntentServices(intent, 0);
-        mServiceAvailable = services != null && !services.isEmpty();
-        if (mServiceAvailable) {
-            mExecutor = Executors.newCachedThreadPool();
-            mBindLatch = new CountDownLatch(1);
-            mContext.bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
-        }
+        mServiceAvailable = mConnection.acquire();
         mConnected = true;
     }
 
@@ -283,25 +549,33 @@ public class BillingHelper {
      * Disconnects this helper from the Google Play billing service. Should be
      * called when the service is no longer needed. This is typically done in
      * the onStop() method of an Activity.
+     * <p/>
+     * The service is only unbound once every helper in the process has
+     * disconnected.
      */
     public synchronized void disconnect() {
         if (!mConnected) return;
         mConnected = false;
-        if (mServiceAvailable) {
-            mExecutor.shutdownNow();
-            mExecutor = null;
-            mContext.unbindService(mConnection);
-            mService = null;
-        }
+        mConnection.release();
     }
 
     /**
      * Asynchronously queries the product IDs passed in the ids parameter. The
      * results of this call will be delivered to the implementation of
      * {@link OnProductsQueriedListener} in the main thread of the app.
+     * <p/>
+     * The billing service accepts at most 20 product IDs per request, so
+     * larger lists are split into batches which are requested concurrently.
+     * The products of every batch are delivered together in a single list. If
+     * any of the batches fails, only the error of the first failed batch is
+     * delivered, and no products are returned.
+     * <p/>
+     * If a product cache has been enabled with
+     * {@link #setProductCacheDuration(long)}, only the products that are not
+     * already cached are requested from the billing service.
      *
-     * @param ids      list containing at least one, but no more than 20, product ids
-     *                 to get additional information about
+     * @param ids      list containing at least one product id to get additional
+     *                 information about
      * @param listener callback to deliver the results of the query
      */
     public void queryProducts(final List<String> ids,
@@ -312,55 +586,76 @@ public class BillingHelper {
         if (ids.isEmpty()) {
             throw new IllegalArgumentException("ids must not be empty");
         }
-        if (ids.size() > 20) {
-            throw new IllegalArgumentException("ids may not exceed 20 ids");
-        }
         checkConnected();
         if (!mServiceAvailable) {
             deliverError(BillingError.PLAY_SERVICES_UNAVAILABLE, listener);
             return;
         }
-        mExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    ArrayList<String> skus = new ArrayList<>();
-                    for (String id : ids) {
-                        if (!skus.contains(id)) {
-                            skus.add(id);
-                        }
-                    }
+        List<String> skus = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<String, Product> cached = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        long maxAge = mProductCacheDuration;
+        for (String sku : skus) {
+            Product product = maxAge > 0 ? mConnection.getProductCache()
+                    .get(mProductType, sku, maxAge) : null;
+            if (product != null) {
+                cached.put(sku, product);
+            } else {
+                missing.add(sku);
+            }
+        }
+        int batchCount = (missing.size() + MAX_SKUS_PER_REQUEST - 1)
+                / MAX_SKUS_PER_REQUEST;
+        final ProductBatches batches = new ProductBatches(skus, cached,
+                batchCount, listener);
+        if (batchCount == 0) {
+            batches.deliver();
+            return;
+        }
+        for (int i = 0; i < batchCount; i++) {
+            final ArrayList<String> batchSkus = new ArrayList<>(missing.subList(
+                    i * MAX_SKUS_PER_REQUEST,
+                    Math.min(missing.size(), (i + 1) * MAX_SKUS_PER_REQUEST)));
+            mConnection.execute(getExecutor(), new ServiceTask() {
+                @Override
+                boolean isIdempotent() {
+                    return true;
+                }
 
+                @Override
+                void run(IInAppBillingService service)
+                        throws RemoteException {
                     Bundle skuBundle = new Bundle();
-                    skuBundle.putStringArrayList(ITEM_ID_LIST, skus);
+                    skuBundle.putStringArrayList(ITEM_ID_LIST, batchSkus);
 
-                    mBindLatch.await();
-                    Bundle result = mService.getSkuDetails(3,
-                            mContext.getPackageName(), mProductType, skuBundle);
+                    Bundle result = service.getSkuDetails(3,
+                            mConnection.getPackageName(), mProductType,
+                            skuBundle);
 
                     int resultCode = result.getInt(RESPONSE_CODE);
                     if (resultCode != 0) {
-                        deliverError(BillingError.fromResponseCode(resultCode),
-                                listener);
+                        batches.fail(BillingError.fromResponseCode(resultCode));
                         return;
                     }
 
                     ArrayList<String> jsonArray = result
                             .getStringArrayList(DETAILS_LIST);
-                    List<Product> products = new ArrayList<>();
+                    List<Product> products = new ArrayList<>(jsonArray.size());
 
                     for (String json : jsonArray) {
                         products.add(new Product(json));
                     }
 
-                    deliverProductsQueried(products, listener);
-                } catch (RemoteException e) {
-                    deliverError(BillingError.REMOTE_EXCEPTION, listener);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                    batches.complete(products);
                 }
-            }
-        });
+
+                @Override
+                void onError(BillingError error) {
+                    batches.fail(error);
+                }
+            });
+            if (batches.isDone()) break;
+        }
     }
 
     /**
@@ -369,6 +664,16 @@ public class BillingHelper {
      * {@link OnPurchasesQueriedListener} in the main thread of the app. If an
      * error occurs during the process, it will be sent to the error handling
      * callback, and you won't get any purchase data returned.
+     * <p/>
+     * Concurrent queries for the same product type, from this or any other
+     * helper, are merged into a single request to the billing service. The
+     * result of that request is delivered to every waiting listener.
+     * <p/>
+     * If a purchase cache has been enabled with
+     * {@link #setPurchaseCacheDuration(long)}, the cached purchases are
+     * delivered without contacting the billing service. When the cached
+     * purchases are older than the cache duration, they are still delivered,
+     * and the cache is refreshed in the background for later queries.
      *
      * @param listener callback to deliver the results of the query
      */
@@ -378,62 +683,159 @@ public class BillingHelper {
             deliverError(BillingError.PLAY_SERVICES_UNAVAILABLE, listener);
             return;
         }
-        mExecutor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String continuationToken = null;
-                    List<Purchase> purchases = new ArrayList<>();
-
-                    mBindLatch.await();
-                    do {
-                        Bundle result = mService.getPurchases(3,
-                                mContext.getPackageName(), mProductType,
-                                continuationToken);
-
-                        int resultCode = result.getInt(RESPONSE_CODE);
-                        if (resultCode != 0) {
-                            deliverError(
-                                    BillingError.fromResponseCode(resultCode),
-                                    listener);
-                            return;
-                        }
+        List<Purchase> cached = null;
+        boolean stale = false;
+        int purchaseGeneration = mConnection.getPurchaseGeneration(mProductType);
+        synchronized (mCacheLock) {
+            // the purchases changed through another helper
+            if (mCachedGeneration != purchaseGeneration) {
+                mCachedPurchases = null;
+            }
+            if (mCachedPurchases != null) {
+                cached = new ArrayList<>(mCachedPurchases);
+                stale = SystemClock.elapsedRealtime() - mCacheTime
+                        >= mPurchaseCacheDuration;
+            }
+        }
+        if (cached == null) {
+            refreshPurchases(listener);
+        } else {
+            deliverPurchasesQueried(cached, listener);
+            if (stale) refreshPurchases(null);
+        }
+    }
 
-                        ArrayList<String> jsonArray = result
-                                .getStringArrayList(INAPP_PURCHASE_DATA_LIST);
-                        ArrayList<String> signatures = result
-                                .getStringArrayList(INAPP_DATA_SIGNATURE_LIST);
-                        continuationToken = result
-                                .getString(INAPP_CONTINUATION_TOKEN);
-
-                        for (int i = 0; i < jsonArray.size(); i++) {
-                            String json = jsonArray.get(i);
-                            String signature = signatures.get(i);
-                            boolean valid = true;
-                            if (mValidator != null) {
-                                valid = mValidator.validateSignature(json,
-                                        signature);
-                            }
-                            if (valid) {
-                                Purchase purchase = new Purchase(json,
-                                        signature);
-                                purchases.add(purchase);
-                            } else {
-                                deliverError(BillingError.INVALID_SIGNATURE,
-                                        listener);
-                                return;
+    private void refreshPurchases(final OnPurchasesQueriedListener listener) {
+        final int generation;
+        synchronized (mCacheLock) {
+            generation = mCacheGeneration;
+        }
+        final int purchaseGeneration =
+                mConnection.getPurchaseGeneration(mProductType);
+        final int snapshotGeneration = mSnapshot.getGeneration();
+        mConnection.queryPurchases(mProductType, mValidator, getExecutor(),
+                new OnPurchasesQueriedListener() {
+                    @Override
+                    public void onError(BillingError error) {
+                        deliverError(error, listener);
+                    }
+
+                    @Override
+                    public void onPurchasesQueried(List<Purchase> purchases) {
+                        boolean current = purchaseGeneration == mConnection
+                                .getPurchaseGeneration(mProductType);
+                        synchronized (mCacheLock) {
+                            if (mPurchaseCacheDuration > 0 && current
+                                    && generation == mCacheGeneration) {
+                                mCachedPurchases = new ArrayList<>(purchases);
+                                mCachedGeneration = purchaseGeneration;
+                                mCacheTime = SystemClock.elapsedRealtime();
                             }
                         }
-                    } while (continuationToken != null);
+                        deliverPurchasesQueried(purchases, listener);
+                        if (mSnapshotEnabled) {
+                            mSnapshot.save(purchases, snapshotGeneration);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Asynchronously queries all completed purchases for the application,
+     * delivering each page of purchases returned by the billing service to the
+     * {@link OnPurchasePageQueriedListener} in the main thread of the app as
+     * soon as it has been validated. After the last page has been delivered,
+     * {@link OnPurchasePageQueriedListener#onPurchaseQueryCompleted()} is
+     * called.
+     * <p/>
+     * If an error occurs, it will be sent to the error handling callback and
+     * no further pages will be delivered. Pages that were delivered before the
+     * error remain valid.
+     * <p/>
+     * Unlike {@link #queryPurchases(OnPurchasesQueriedListener)}, this query is
+     * never merged with other queries or answered from the purchase cache.
+     *
+     * @param listener callback to deliver each page of the query
+     */
+    public void queryPurchasePages(final OnPurchasePageQueriedListener listener) {
+        checkConnected();
+        if (!mServiceAvailable) {
+            deliverError(BillingError.PLAY_SERVICES_UNAVAILABLE, listener);
+            return;
+        }
+        execute(new ServiceTask() {
+            // a retry resumes after the last delivered page
+            private String mContinuationToken;
+
+            @Override
+            boolean isIdempotent() {
+                return true;
+            }
 
+            @Override
+            void run(IInAppBillingService service) throws RemoteException {
+                do {
+                    Bundle result = service.getPurchases(3,
+                            mConnection.getPackageName(), mProductType,
+                            mContinuationToken);
+
+                    int resultCode = result.getInt(RESPONSE_CODE);
+                    if (resultCode != 0) {
+                        deliverError(BillingError.fromResponseCode(resultCode),
+                                listener);
+                        return;
+                    }
+
+                    List<Purchase> purchases = PurchaseQuery.verify(
+                            mProductType, mValidator,
+                            result.getStringArrayList(INAPP_PURCHASE_DATA_LIST),
+                            result.getStringArrayList(
+                                    INAPP_DATA_SIGNATURE_LIST));
+                    if (purchases == null) {
+                        deliverError(BillingError.INVALID_SIGNATURE, listener);
+                        return;
+                    }
+                    mContinuationToken = result
+                            .getString(INAPP_CONTINUATION_TOKEN);
+
+                    deliverPurchasePageQueried(purchases, listener);
+                } while (mContinuationToken != null);
+
+                deliverPurchaseQueryCompleted(listener);
+            }
+
+            @Override
+            void onError(BillingError error) {
+                deliverError(error, listener);
+            }
+        });
+    }
+
+    /**
+     * Asynchronously loads the purchases saved by the last successful call to
+     * {@link #queryPurchases(OnPurchasesQueriedListener)}. Every saved purchase
+     * is verified again with the current {@link SignatureValidator} before it
+     * is delivered to the listener in the main thread of the app.
+     * <p/>
+     * This is meant to provide a likely purchase state immediately on startup
+     * while an actual query to the billing service is still in progress. The
+     * listener is only called if purchase snapshots have been enabled with
+     * {@link #setPurchaseSnapshotEnabled(boolean)} and a valid snapshot
+     * exists.
+     *
+     * @param listener callback to deliver the saved purchases
+     */
+    public void queryPurchaseSnapshot(final OnPurchasesQueriedListener listener) {
+        if (!mSnapshotEnabled) return;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Purchase> purchases = mSnapshot.load(mValidator);
+                if (purchases != null) {
                     deliverPurchasesQueried(purchases, listener);
-                } catch (RemoteException e) {
-                    deliverError(BillingError.REMOTE_EXCEPTION, listener);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
                 }
             }
-        });
+        }, null);
     }
 
     /**
@@ -472,13 +874,12 @@ public class BillingHelper {
             deliverError(BillingError.PLAY_SERVICES_UNAVAILABLE, listener);
             return;
         }
-        mExecutor.execute(new Runnable() {
+        execute(new ServiceTask() {
             @Override
-            public void run() {
+            void run(IInAppBillingService service) throws RemoteException {
                 try {
-                    mBindLatch.await();
-                    Bundle result = mService.getBuyIntent(3,
-                            mContext.getPackageName(), productId, mProductType,
+                    Bundle result = service.getBuyIntent(3,
+                            mConnection.getPackageName(), productId, mProductType,
                             payload);
 
                     int resultCode = result.getInt(RESPONSE_CODE);
@@ -494,14 +895,15 @@ public class BillingHelper {
                             intent.getIntentSender(), requestCode,
                             new Intent(), 0, 0, 0);
 
-                } catch (RemoteException e) {
-                    deliverError(BillingError.REMOTE_EXCEPTION, listener);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
                 } catch (SendIntentException e) {
                     deliverError(BillingError.SEND_INTENT_EXCEPTION, listener);
                 }
             }
+
+            @Override
+            void onError(BillingError error) {
+                deliverError(error, listener);
+            }
         });
     }
 
@@ -516,15 +918,17 @@ public class BillingHelper {
      * anything, it will cause errors to be sent to this method's listener when
      * the purchase was not completed.
      * <p/>
-     * This uses a background thread to do any validation in the event that a
-     * SignatureValidator is being used with this BillingHelper.
+     * The intent is parsed and validated, in the event that a
+     * SignatureValidator is being used with this BillingHelper, on the same
+     * executor that runs this helper's other requests. Since the billing
+     * service isn't contacted, this does not require a connection.
      *
      * @param data     intent to retrieve purchase data from
      * @param listener listener to handle result of the intent
      */
     public void handleActivityResult(final Intent data,
                                      final OnProductPurchasedListener listener) {
-        new Thread(new Runnable() {
+        execute(new Runnable() {
             @Override
             public void run() {
                 int responseCode = data.getIntExtra(RESPONSE_CODE, 6);
@@ -537,16 +941,19 @@ public class BillingHelper {
                 String signature = data.getStringExtra(INAPP_DATA_SIGNATURE);
                 boolean valid = true;
                 if (mValidator != null) {
-                    valid = mValidator.validateSignature(json, signature);
+                    valid = Metrics.validateSignature(mValidator, json,
+                            signature);
                 }
                 if (valid) {
-                    Purchase purchase = new Purchase(json, signature);
+                    Purchase purchase = new Purchase(json, signature,
+                            mProductType);
+                    invalidatePurchaseCache();
                     deliverProductPurchased(purchase, listener);
                 } else {
                     deliverError(BillingError.INVALID_SIGNATURE, listener);
                 }
             }
-        }).start();
+        }, listener);
     }
 
     /**
@@ -572,31 +979,206 @@ public class BillingHelper {
             deliverError(BillingError.PLAY_SERVICES_UNAVAILABLE, listener);
             return;
         }
-        mExecutor.execute(new Runnable() {
+        execute(new ServiceTask() {
             @Override
-            public void run() {
-                try {
-                    mBindLatch.await();
-                    int resultCode = mService.consumePurchase(3,
-                            mContext.getPackageName(),
-                            purchase.getPurchaseToken());
+            void run(IInAppBillingService service) throws RemoteException {
+                int resultCode = service.consumePurchase(3,
+                        mConnection.getPackageName(),
+                        purchase.getPurchaseToken());
 
-                    if (resultCode != 0) {
-                        deliverError(BillingError.fromResponseCode(resultCode),
-                                listener);
-                        return;
-                    }
+                if (resultCode != 0) {
+                    deliverError(BillingError.fromResponseCode(resultCode),
+                            listener);
+                    return;
+                }
 
-                    deliverPurchaseConsumed(purchase, listener);
-                } catch (RemoteException e) {
-                    deliverError(BillingError.REMOTE_EXCEPTION, listener);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                invalidatePurchaseCache();
+                deliverPurchaseConsumed(purchase, listener);
+                if (mSnapshotEnabled) {
+                    mSnapshot.remove(Collections.singletonList(purchase));
                 }
             }
+
+            @Override
+            void onError(BillingError error) {
+                deliverError(error, listener);
+            }
         });
     }
 
+    /**
+     * Asynchronously queries the product IDs passed in the ids parameter,
+     * like {@link #queryProducts(List, OnProductsQueriedListener)}, returning
+     * a future of the products instead of calling a listener. The future is
+     * completed on a worker thread, see {@link BillingFuture}.
+     *
+     * @param ids list containing at least one product id to get additional
+     *            information about
+     * @return a future of the queried products
+     */
+    public BillingFuture<List<Product>> queryProducts(List<String> ids) {
+        FutureListener<List<Product>> listener = new FutureListener<>();
+        queryProducts(ids, listener);
+        return listener.mFuture;
+    }
+
+    /**
+     * Asynchronously queries all completed purchases for the application,
+     * like {@link #queryPurchases(OnPurchasesQueriedListener)}, returning a
+     * future of the purchases instead of calling a listener. The future is
+     * completed on a worker thread, see {@link BillingFuture}, unless the
+     * purchases are answered from the purchase cache, in which case it is
+     * already done when returned.
+     *
+     * @return a future of the queried purchases
+     */
+    public BillingFuture<List<Purchase>> queryPurchases() {
+        FutureListener<List<Purchase>> listener = new FutureListener<>();
+        queryPurchases(listener);
+        return listener.mFuture;
+    }
+
+    /**
+     * Asynchronously consumes a purchased product, like
+     * {@link #consumePurchase(Purchase, OnPurchaseConsumedListener)},
+     * returning a future of the consumed purchase instead of calling a
+     * listener. The future is completed on a worker thread, see
+     * {@link BillingFuture}.
+     *
+     * @param purchase purchase to consume
+     * @return a future of the consumed purchase
+     */
+    public BillingFuture<Purchase> consumePurchase(Purchase purchase) {
+        FutureListener<Purchase> listener = new FutureListener<>();
+        consumePurchase(purchase, listener);
+        return listener.mFuture;
+    }
+
+    /**
+     * Queries the product IDs passed in the ids parameter, blocking until the
+     * products are available.
+     * <p/>
+     * May not be called on the main thread, nor on a thread that is running
+     * a billing request or a callback delivered directly by one, such as a
+     * function passed to {@link BillingFuture#then}. Those threads may be
+     * needed to complete the request, so waiting on them could deadlock.
+     *
+     * @param ids list containing at least one product id to get additional
+     *            information about
+     * @return the queried products
+     * @throws BillingException      if the query failed
+     * @throws InterruptedException  if the thread was interrupted while
+     *                               waiting
+     * @throws IllegalStateException if called on a thread that may not
+     *                               block
+     */
+    public List<Product> queryProductsBlocking(List<String> ids)
+            throws BillingException, InterruptedException {
+        BillingFuture.checkCanBlock();
+        return queryProducts(ids).await();
+    }
+
+    /**
+     * Queries all completed purchases for the application, blocking until the
+     * purchases are available.
+     * <p/>
+     * May not be called on the threads listed in
+     * {@link #queryProductsBlocking(List)}.
+     *
+     * @return the queried purchases
+     * @throws BillingException      if the query failed
+     * @throws InterruptedException  if the thread was interrupted while
+     *                               waiting
+     * @throws IllegalStateException if called on a thread that may not
+     *                               block
+     */
+    public List<Purchase> queryPurchasesBlocking()
+            throws BillingException, InterruptedException {
+        BillingFuture.checkCanBlock();
+        return queryPurchases().await();
+    }
+
+    /**
+     * Consumes a purchased product, blocking until the purchase has been
+     * consumed.
+     * <p/>
+     * May not be called on the threads listed in
+     * {@link #queryProductsBlocking(List)}.
+     *
+     * @param purchase purchase to consume
+     * @return the consumed purchase
+     * @throws BillingException      if the consumption failed
+     * @throws InterruptedException  if the thread was interrupted while
+     *                               waiting
+     * @throws IllegalStateException if called on a thread that may not
+     *                               block
+     */
+    public Purchase consumePurchaseBlocking(Purchase purchase)
+            throws BillingException, InterruptedException {
+        BillingFuture.checkCanBlock();
+        return consumePurchase(purchase).await();
+    }
+
+    /**
+     * Asynchronously consumes several purchased products, running up to 4
+     * consumption requests at the same time. See
+     * {@link #consumePurchases(List, int, OnPurchasesConsumedListener)}.
+     *
+     * @param purchases purchases to consume
+     * @param listener  callback to deliver the results of the consumption
+     *                  requests
+     */
+    public void consumePurchases(List<Purchase> purchases,
+                                 OnPurchasesConsumedListener listener) {
+        consumePurchases(purchases, DEFAULT_MAX_CONCURRENT_CONSUMES, listener);
+    }
+
+    /**
+     * Asynchronously consumes several purchased products, running at most
+     * maxConcurrent consumption requests at the same time. Once every purchase
+     * has been processed, a single result is delivered to the implementation
+     * of the {@link OnPurchasesConsumedListener} in the main thread of the
+     * app, listing the purchases that were consumed and the error for each
+     * purchase that wasn't.
+     * <p/>
+     * {@link OnErrorListener#onError(BillingError)} is only called if none of
+     * the purchases could be processed at all, for instance when the billing
+     * service is unavailable.
+     *
+     * @param purchases     purchases to consume
+     * @param maxConcurrent maximum number of consumption requests to run at
+     *                      the same time
+     * @param listener      callback to deliver the results of the consumption
+     *                      requests
+     */
+    public void consumePurchases(List<Purchase> purchases, int maxConcurrent,
+                                 OnPurchasesConsumedListener listener) {
+        if (purchases == null) {
+            throw new IllegalArgumentException("purchases may not be null");
+        }
+        if (purchases.isEmpty()) {
+            throw new IllegalArgumentException("purchases must not be empty");
+        }
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException(
+                    "maxConcurrent must be positive");
+        }
+        if (mProductType.equals("subs")) {
+            throw new UnsupportedOperationException(
+                    "Cannot consume a subscription");
+        }
+        checkConnected();
+        if (!mServiceAvailable) {
+            deliverError(BillingError.PLAY_SERVICES_UNAVAILABLE, listener);
+            return;
+        }
+        int workers = Math.min(maxConcurrent, purchases.size());
+        ConsumeBatch batch = new ConsumeBatch(purchases, workers, listener);
+        for (int i = 0; i < workers; i++) {
+            mConnection.execute(getExecutor(), batch);
+        }
+    }
+
     /**
      * Sets the BillingHelper to use the specified SignatureValidator to handle
      * any signature validation. If set to {@code null}, no validation will
@@ -610,6 +1192,178 @@ public class BillingHelper {
      */
     public void setSignatureValidator(SignatureValidator validator) {
         mValidator = validator;
+        // the purchases themselves haven't changed, so queries in flight may
+        // still be joined and verified with the new validator
+        synchronized (mCacheLock) {
+            mCachedPurchases = null;
+            mCacheGeneration++;
+        }
+    }
+
+    /**
+     * Enables an in-memory cache of the purchases returned by
+     * {@link #queryPurchases(OnPurchasesQueriedListener)}. While cached
+     * purchases are younger than the given duration, queries are answered
+     * without contacting the billing service. Once they are older, they are
+     * still delivered, but a background query is made to refresh the cache.
+     * <p/>
+     * The cache is invalidated automatically whenever a purchase completes
+     * through {@link #handleActivityResult(Intent, OnProductPurchasedListener)}
+     * or is consumed through
+     * {@link #consumePurchase(Purchase, OnPurchaseConsumedListener)}, on this
+     * or any other helper of the same product type. A duration of {@code 0}
+     * disables the cache, which is the default.
+     *
+     * @param duration time in milliseconds that cached purchases are
+     *                 considered fresh
+     */
+    public void setPurchaseCacheDuration(long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration may not be negative");
+        }
+        synchronized (mCacheLock) {
+            mPurchaseCacheDuration = duration;
+            if (duration == 0) mCachedPurchases = null;
+        }
+    }
+
+    /**
+     * Enables saving the purchases returned by every successful call to
+     * {@link #queryPurchases(OnPurchasesQueriedListener)} to disk, so they can
+     * be loaded with {@link #queryPurchaseSnapshot(OnPurchasesQueriedListener)}
+     * the next time the application starts. Snapshots are written after the
+     * purchases are delivered, and purchases consumed through this helper are
+     * removed from the snapshot. Snapshots are disabled by default.
+     *
+     * @param enabled {@code true} to save and load purchase snapshots
+     */
+    public void setPurchaseSnapshotEnabled(boolean enabled) {
+        mSnapshotEnabled = enabled;
+    }
+
+    /**
+     * Enables caching of the products returned by
+     * {@link #queryProducts(List, OnProductsQueriedListener)}. Products are
+     * cached for every helper in the process, up to a fixed number of
+     * products, and products cached less than the given duration ago are
+     * returned without contacting the billing service. The cache is cleared
+     * whenever the default locale changes. A duration of {@code 0} disables
+     * the cache for this helper, which is the default.
+     *
+     * @param duration time in milliseconds that cached products are
+     *                 considered fresh
+     */
+    public void setProductCacheDuration(long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("duration may not be negative");
+        }
+        mProductCacheDuration = duration;
+    }
+
+    /**
+     * Sets the executor used to run this helper's requests, such as a pool of
+     * background threads the application already has. If set to
+     * {@code null}, the executor given to
+     * {@link #setDefaultExecutor(Executor)} is used, or the default pool of
+     * worker threads if there is none.
+     * <p/>
+     * The executor is never shut down by this helper, and is kept across
+     * calls to {@link #connect()} and {@link #disconnect()}.
+     *
+     * @param executor executor to run this helper's requests
+     */
+    public void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Sets the executor that delivers the results of this helper's requests
+     * to their listeners. By default, and when set to {@code null}, results
+     * are delivered on the main thread of the app.
+     * <p/>
+     * Background callers that don't touch the user interface, such as a sync
+     * service, may use {@link #DIRECT_EXECUTOR} to receive results directly
+     * on the worker thread that completed the request, without waiting for
+     * the main thread. Listeners may then be called on several threads at
+     * once.
+     *
+     * @param executor executor to deliver results, may be {@code null}
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * Enables or disables coalesced delivery of results on the main thread.
+     * When enabled, the results of every helper that has it enabled are
+     * collected until the start of the next frame, and then delivered
+     * together from a single main thread message. Screens that refresh many
+     * products at once then apply all of the results in one layout pass.
+     * <p/>
+     * Results are still delivered in the order they completed. Coalescing
+     * has no effect while a callback executor is set, see
+     * {@link #setCallbackExecutor(Executor)}.
+     *
+     * @param coalesce whether to coalesce the delivery of results
+     */
+    public void setCoalescedCallbacks(boolean coalesce) {
+        mCoalesceCallbacks = coalesce;
+    }
+
+    /**
+     * Delivers the results of this helper's requests to their listeners on
+     * the thread of the given looper. See
+     * {@link #setCallbackExecutor(Executor)}.
+     *
+     * @param looper looper of the thread to deliver results on
+     */
+    public void setCallbackLooper(Looper looper) {
+        if (looper == null) {
+            throw new IllegalArgumentException("looper may not be null");
+        }
+        if (looper == Looper.getMainLooper()) {
+            mCallbackExecutor = null;
+            return;
+        }
+        final Handler handler = new Handler(looper);
+        mCallbackExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Discards any purchases cached by this or any other helper of the same
+     * product type, so the next call to
+     * {@link #queryPurchases(OnPurchasesQueriedListener)} contacts the billing
+     * service. A query of the same product type that is already in flight is
+     * not joined by later calls either, since it may have started before the
+     * purchases changed.
+     */
+    public void invalidatePurchaseCache() {
+        synchronized (mCacheLock) {
+            mCachedPurchases = null;
+            mCacheGeneration++;
+        }
+        mSnapshot.invalidate();
+        mConnection.invalidatePurchases(mProductType);
+    }
+
+    private Executor getExecutor() {
+        Executor executor = mExecutor;
+        return executor != null ? executor : getDefaultExecutor();
+    }
+
+    private void execute(Runnable task, OnErrorListener listener) {
+        if (!mConnection.executeLocal(getExecutor(), task)) {
+            deliverError(BillingError.REQUEST_REJECTED, listener);
+        }
+    }
+
+    private void execute(ServiceTask task) {
+        mConnection.execute(getExecutor(), task);
     }
 
     private void checkConnected() {
@@ -618,12 +1372,26 @@ public class BillingHelper {
         }
     }
 
+    /**
+     * Returns whether the calling thread belongs to an executor created by
+     * this class.
+     */
+    static boolean isWorkerThread() {
+        return Thread.currentThread() instanceof WorkerThread;
+    }
+
+    private static final class WorkerThread extends Thread {
+        WorkerThread(Runnable runnable, String name) {
+            super(runnable, name);
+        }
+    }
+
     private void deliverError(final BillingError error,
                               final OnErrorListener listener) {
         if (listener == null) return;
-        mHandler.post(new Runnable() {
+        deliver(listener, new Delivery() {
             @Override
-            public void run() {
+            void deliver() {
                 listener.onError(error);
             }
         });
@@ -632,9 +1400,9 @@ public class BillingHelper {
     private void deliverProductsQueried(final List<Product> products,
                                         final OnProductsQueriedListener listener) {
         if (listener == null) return;
-        mHandler.post(new Runnable() {
+        deliver(listener, new Delivery() {
             @Override
-            public void run() {
+            void deliver() {
                 listener.onProductsQueried(products);
             }
         });
@@ -643,20 +1411,54 @@ public class BillingHelper {
     private void deliverPurchasesQueried(final List<Purchase> purchases,
                                          final OnPurchasesQueriedListener listener) {
         if (listener == null) return;
-        mHandler.post(new Runnable() {
+        deliver(listener, new Delivery() {
             @Override
-            public void run() {
+            void deliver() {
                 listener.onPurchasesQueried(purchases);
             }
         });
     }
 
+    private void deliverPurchasePageQueried(final List<Purchase> purchases,
+                                            final OnPurchasePageQueriedListener listener) {
+        if (listener == null) return;
+        deliver(listener, new Delivery() {
+            @Override
+            void deliver() {
+                listener.onPurchasePageQueried(purchases);
+            }
+        });
+    }
+
+    private void deliverPurchaseQueryCompleted(
+            final OnPurchasePageQueriedListener listener) {
+        if (listener == null) return;
+        deliver(listener, new Delivery() {
+            @Override
+            void deliver() {
+                listener.onPurchaseQueryCompleted();
+            }
+        });
+    }
+
+    private void deliverPurchasesConsumed(final List<Purchase> consumed,
+                                          final Map<Purchase, BillingError> failed,
+                                          final OnPurchasesConsumedListener listener) {
+        if (listener == null) return;
+        deliver(listener, new Delivery() {
+            @Override
+            void deliver() {
+                listener.onPurchasesConsumed(consumed, failed);
+            }
+        });
+    }
+
     private void deliverProductPurchased(final Purchase purchase,
                                          final OnProductPurchasedListener listener) {
         if (listener == null) return;
-        mHandler.post(new Runnable() {
+        deliver(listener, new Delivery() {
             @Override
-            public void run() {
+            void deliver() {
                 listener.onProductPurchased(purchase);
             }
         });
@@ -665,11 +1467,228 @@ public class BillingHelper {
     private void deliverPurchaseConsumed(final Purchase purchase,
                                          final OnPurchaseConsumedListener listener) {
         if (listener == null) return;
-        mHandler.post(new Runnable() {
+        deliver(listener, new Delivery() {
             @Override
-            public void run() {
+            void deliver() {
                 listener.onPurchaseConsumed(purchase);
             }
         });
     }
+
+    /**
+     * Hands a callback to the callback executor of this helper, or to the
+     * main thread if there is none. Every callback to a listener goes through
+     * here.
+     * <p/>
+     * Futures are completed directly on the calling thread, so that their
+     * continuations don't wait for the main thread.
+     */
+    private void deliver(OnErrorListener listener, Delivery delivery) {
+        Executor executor = mCallbackExecutor;
+        if (listener instanceof FutureListener) {
+            delivery.run();
+        } else if (executor != null) {
+            executor.execute(delivery);
+        } else {
+            // only the wait for the main thread is measured
+            delivery.mPostTime = System.nanoTime();
+            if (mCoalesceCallbacks) {
+                FrameDispatcher.post(delivery);
+            } else {
+                mHandler.post(delivery);
+            }
+        }
+    }
+
+    /**
+     * Completes a future with the result of a request. Recognized by
+     * {@link #deliver(OnErrorListener, Delivery)}, which calls it directly on
+     * the worker thread instead of posting it.
+     */
+    private static final class FutureListener<T>
+            implements OnProductsQueriedListener, OnPurchasesQueriedListener,
+            OnPurchaseConsumedListener {
+        final BillingFuture<T> mFuture = new BillingFuture<>();
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void onProductsQueried(List<Product> products) {
+            mFuture.set((T) products);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void onPurchasesQueried(List<Purchase> purchases) {
+            mFuture.set((T) purchases);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public void onPurchaseConsumed(Purchase purchase) {
+            mFuture.set((T) purchase);
+        }
+
+        @Override
+        public void onError(BillingError error) {
+            mFuture.setException(new BillingException(error));
+        }
+    }
+
+    /**
+     * Collects the results of the batches of a single product query, and
+     * delivers them in the requested order, along with any cached products,
+     * once every batch has completed.
+     */
+    private class ProductBatches {
+        private final List<String> mSkus;
+        private final Map<String, Product> mProducts;
+        private final OnProductsQueriedListener mListener;
+        private final AtomicInteger mRemaining;
+        private final AtomicBoolean mDone;
+
+        ProductBatches(List<String> skus, Map<String, Product> cached,
+                       int count, OnProductsQueriedListener listener) {
+            mSkus = skus;
+            mProducts = cached;
+            mListener = listener;
+            mRemaining = new AtomicInteger(count);
+            mDone = new AtomicBoolean();
+        }
+
+        void complete(List<Product> products) {
+            synchronized (mProducts) {
+                for (Product product : products) {
+                    mProducts.put(product.getProductId(), product);
+                    if (mProductCacheDuration > 0) {
+                        mConnection.getProductCache().put(mProductType,
+                                product);
+                    }
+                }
+            }
+            if (mRemaining.decrementAndGet() > 0
+                    || !mDone.compareAndSet(false, true)) {
+                return;
+            }
+            deliver();
+        }
+
+        void deliver() {
+            List<Product> merged = new ArrayList<>(mSkus.size());
+            synchronized (mProducts) {
+                for (String sku : mSkus) {
+                    Product product = mProducts.get(sku);
+                    if (product != null) merged.add(product);
+                }
+            }
+            deliverProductsQueried(merged, mListener);
+        }
+
+        void fail(BillingError error) {
+            // a batch may fail after the products were delivered, if the
+            // delivery itself threw
+            if (mDone.compareAndSet(false, true)) {
+                deliverError(error, mListener);
+            }
+        }
+
+        boolean isDone() {
+            return mDone.get();
+        }
+    }
+
+    /**
+     * Consumes the purchases of a batch consumption request. Each worker
+     * running this task consumes purchases one at a time until none are left,
+     * and the last worker to finish delivers the result.
+     */
+    private class ConsumeBatch extends ServiceTask {
+        private final List<Purchase> mPurchases;
+        private final boolean[] mProcessed;
+        private final BillingError[] mErrors;
+        private final OnPurchasesConsumedListener mListener;
+        private final AtomicInteger mNext;
+        private final AtomicInteger mActiveWorkers;
+        private final AtomicBoolean mStarted;
+        private volatile BillingError mError;
+        private volatile boolean mServiceDied;
+
+        ConsumeBatch(List<Purchase> purchases, int workers,
+                     OnPurchasesConsumedListener listener) {
+            mPurchases = new ArrayList<>(purchases);
+            mProcessed = new boolean[mPurchases.size()];
+            mErrors = new BillingError[mPurchases.size()];
+            mListener = listener;
+            mNext = new AtomicInteger();
+            mActiveWorkers = new AtomicInteger(workers);
+            mStarted = new AtomicBoolean();
+        }
+
+        @Override
+        void run(IInAppBillingService service) throws DeadObjectException {
+            mStarted.set(true);
+            int index;
+            while (!mServiceDied
+                    && (index = mNext.getAndIncrement()) < mPurchases.size()) {
+                BillingError error = null;
+                try {
+                    int resultCode = service.consumePurchase(3,
+                            mConnection.getPackageName(),
+                            mPurchases.get(index).getPurchaseToken());
+                    if (resultCode != 0) {
+                        error = BillingError.fromResponseCode(resultCode);
+                    }
+                } catch (DeadObjectException e) {
+                    // stop every worker, the items not yet consumed fail;
+                    // the connection rebinds and this worker finishes in
+                    // onError
+                    mServiceDied = true;
+                    synchronized (mErrors) {
+                        mProcessed[index] = true;
+                        mErrors[index] = BillingError.REMOTE_EXCEPTION;
+                    }
+                    throw e;
+                } catch (RemoteException e) {
+                    error = BillingError.REMOTE_EXCEPTION;
+                }
+                synchronized (mErrors) {
+                    mProcessed[index] = true;
+                    mErrors[index] = error;
+                }
+            }
+            finishWorker();
+        }
+
+        @Override
+        void onError(BillingError error) {
+            mError = error;
+            finishWorker();
+        }
+
+        private void finishWorker() {
+            if (mActiveWorkers.decrementAndGet() > 0) return;
+            if (!mStarted.get()) {
+                deliverError(mError, mListener);
+                return;
+            }
+            List<Purchase> consumed = new ArrayList<>();
+            Map<Purchase, BillingError> failed = new LinkedHashMap<>();
+            synchronized (mErrors) {
+                for (int i = 0; i < mErrors.length; i++) {
+                    if (!mProcessed[i]) {
+                        failed.put(mPurchases.get(i),
+                                BillingError.REMOTE_EXCEPTION);
+                    } else if (mErrors[i] == null) {
+                        consumed.add(mPurchases.get(i));
+                    } else {
+                        failed.put(mPurchases.get(i), mErrors[i]);
+                    }
+                }
+            }
+            if (!consumed.isEmpty()) invalidatePurchaseCache();
+            deliverPurchasesConsumed(consumed, failed, mListener);
+            if (mSnapshotEnabled && !consumed.isEmpty()) {
+                mSnapshot.remove(consumed);
+            }
+        }
+    }
 }
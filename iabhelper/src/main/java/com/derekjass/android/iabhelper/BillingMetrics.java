@@ -0,0 +1,87 @@
+package com.derekjass.android.iabhelper;
+
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+
+/**
+ * Receives timing information about the work done by every
+ * {@link BillingHelper} in the process. An implementation may be installed
+ * with {@link BillingHelper#setMetrics(BillingMetrics)} to export the data to
+ * an application's own telemetry, or {@link HistogramBillingMetrics} may be
+ * used to collect it in memory.
+ * <p/>
+ * Methods of this interface are called on whichever thread did the work,
+ * often several at once, so implementations must be thread safe and should
+ * return quickly.
+ */
+public interface BillingMetrics {
+
+    /**
+     * The operations whose latency is measured.
+     */
+    public enum Operation {
+        /**
+         * Binding to the billing service, from the bind request until the
+         * service connects.
+         */
+        BIND,
+        /**
+         * A single {@code getSkuDetails} request for up to 20 products.
+         */
+        GET_SKU_DETAILS,
+        /**
+         * A single {@code getPurchases} request for one page of purchases.
+         */
+        GET_PURCHASES,
+        /**
+         * A {@code getBuyIntent} request.
+         */
+        GET_BUY_INTENT,
+        /**
+         * A {@code consumePurchase} request.
+         */
+        CONSUME_PURCHASE,
+        /**
+         * Validating the signature of a single purchase.
+         */
+        VALIDATE_SIGNATURE
+    }
+
+    /**
+     * Called when an operation has completed, whether or not it succeeded.
+     *
+     * @param operation     the operation
+     * @param durationNanos how long the operation took in nanoseconds
+     * @param error         the error the operation failed with, or
+     *                      {@code null} if it succeeded
+     */
+    public void onOperationCompleted(Operation operation, long durationNanos,
+                                     BillingError error);
+
+    /**
+     * Called whenever a request to the billing service is queued or leaves
+     * the queue. A request is queued from the time it is made until a worker
+     * thread starts running it, including any time spent waiting for the
+     * billing service to be bound. Work that runs on the same executors
+     * without contacting the billing service, such as
+     * {@link BillingHelper#handleActivityResult}, is counted as well.
+     * <p/>
+     * The depth is counted by a single counter for the whole process, but
+     * calls made for changes on different threads at once may arrive in any
+     * order, so the depth of the latest call isn't necessarily the current
+     * one.
+     *
+     * @param depth the number of queued requests
+     */
+    public void onQueueDepthChanged(int depth);
+
+    /**
+     * Called when a callback is about to be delivered to a listener on the
+     * main thread. Callbacks given to an executor set with
+     * {@link BillingHelper#setCallbackExecutor} and results of futures are
+     * not measured, since they don't wait for the main thread.
+     *
+     * @param delayNanos time in nanoseconds between posting the callback to
+     *                   the main thread and running it
+     */
+    public void onCallbackDelivered(long delayNanos);
+}
@@ -0,0 +1,108 @@
+package com.derekjass.android.iabhelper;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link SignatureValidator} that remembers the results of another
+ * validator. Every purchase is validated again each time purchases are
+ * queried, so wrapping an expensive validator in this class avoids repeating
+ * the same verification for purchases that haven't changed.
+ * <p/>
+ * Results are keyed by a SHA-256 digest of the data and signature, and only a
+ * bounded number of results are kept, discarding the least recently used ones
+ * first. This class is safe to use from multiple threads as long as the
+ * wrapped validator is.
+ */
+public class CachingSignatureValidator implements SignatureValidator {
+
+    private static final int DEFAULT_MAX_SIZE = 100;
+
+    private final SignatureValidator mValidator;
+    private final Map<ByteBuffer, Boolean> mResults;
+
+    /**
+     * Creates a validator that remembers the results of up to 100
+     * validations.
+     *
+     * @param validator validator whose results are cached
+     */
+    public CachingSignatureValidator(SignatureValidator validator) {
+        this(validator, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Creates a validator that remembers the results of up to maxSize
+     * validations.
+     *
+     * @param validator validator whose results are cached
+     * @param maxSize   maximum number of results to remember
+     */
+    public CachingSignatureValidator(SignatureValidator validator,
+                                     final int maxSize) {
+        if (validator == null) {
+            throw new IllegalArgumentException("validator may not be null");
+        }
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        mValidator = validator;
+        mResults = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<ByteBuffer, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    @Override
+    public boolean validateSignature(String data, String signature) {
+        ByteBuffer key = digest(data, signature);
+        synchronized (mResults) {
+            Boolean result = mResults.get(key);
+            if (result != null) return result;
+        }
+        boolean valid = mValidator.validateSignature(data, signature);
+        synchronized (mResults) {
+            mResults.put(key, valid);
+        }
+        return valid;
+    }
+
+    /**
+     * Forgets every remembered result.
+     */
+    public void clear() {
+        synchronized (mResults) {
+            mResults.clear();
+        }
+    }
+
+    private static ByteBuffer digest(String data, String signature) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            update(digest, data);
+            update(digest, signature);
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value)
+            throws UnsupportedEncodingException {
+        // length prefix keeps ("ab", "c") and ("a", "bc") apart
+        if (value == null) {
+            digest.update(ByteBuffer.allocate(4).putInt(-1).array());
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+}
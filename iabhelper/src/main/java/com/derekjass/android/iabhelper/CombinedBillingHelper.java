@@ -0,0 +1,213 @@
+package com.derekjass.android.iabhelper;
+
+import android.content.Context;
+
+import com.android.vending.billing.IInAppBillingService;
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+import com.derekjass.android.iabhelper.BillingHelper.OnPurchasesQueriedListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * A helper for applications that sell both managed products and
+ * subscriptions. It pairs a managed product {@link BillingHelper} with a
+ * subscription one over the same connection to the billing service, and
+ * queries the purchases of both types at the same time, delivering a single
+ * merged result. Each purchase in the result is tagged with its type, see
+ * {@link Purchase#getProductType()}.
+ * <p/>
+ * Requests that only apply to one product type, such as purchasing or
+ * consuming a product, are made through
+ * {@link #getManagedProductHelper()} or {@link #getSubscriptionHelper()}.
+ */
+public class CombinedBillingHelper {
+
+    private final BillingHelper mManagedProductHelper;
+    private final BillingHelper mSubscriptionHelper;
+
+    /**
+     * Creates a helper for both product types.
+     *
+     * @param context application context
+     */
+    public CombinedBillingHelper(Context context) {
+        mManagedProductHelper = BillingHelper.newManagedProductHelper(context);
+        mSubscriptionHelper = BillingHelper.newSubscriptionHelper(context);
+    }
+
+    /**
+     * Creates a helper for both product types that sends its requests to the
+     * given implementation of the billing service instead of the Play Store.
+     * See {@link BillingHelper#newManagedProductHelper(Context,
+     * IInAppBillingService)}.
+     *
+     * @param context application context
+     * @param service billing service implementation to use
+     */
+    public CombinedBillingHelper(Context context,
+                                 IInAppBillingService service) {
+        mManagedProductHelper = BillingHelper.newManagedProductHelper(context,
+                service);
+        mSubscriptionHelper = BillingHelper.newSubscriptionHelper(context,
+                service);
+    }
+
+    /**
+     * Connects to the billing service. See {@link BillingHelper#connect()}.
+     */
+    public void connect() {
+        mManagedProductHelper.connect();
+        mSubscriptionHelper.connect();
+    }
+
+    /**
+     * Disconnects from the billing service. See
+     * {@link BillingHelper#disconnect()}.
+     */
+    public void disconnect() {
+        mManagedProductHelper.disconnect();
+        mSubscriptionHelper.disconnect();
+    }
+
+    /**
+     * Returns the helper used for managed products.
+     *
+     * @return the managed product helper
+     */
+    public BillingHelper getManagedProductHelper() {
+        return mManagedProductHelper;
+    }
+
+    /**
+     * Returns the helper used for subscriptions.
+     *
+     * @return the subscription helper
+     */
+    public BillingHelper getSubscriptionHelper() {
+        return mSubscriptionHelper;
+    }
+
+    /**
+     * Asynchronously queries the purchases of both managed products and
+     * subscriptions. Both queries run at the same time, and once both have
+     * completed the managed product purchases followed by the subscription
+     * purchases are delivered to the listener in the main thread of the app,
+     * or by the callback executor if one was set.
+     * <p/>
+     * If either query fails, only the first error is delivered to the
+     * listener and no purchases are delivered.
+     *
+     * @param listener callback to deliver the merged purchases
+     */
+    public void queryPurchases(final OnPurchasesQueriedListener listener) {
+        final List<List<Purchase>> results = new ArrayList<>(2);
+        results.add(null);
+        results.add(null);
+        final boolean[] failed = new boolean[1];
+        mManagedProductHelper.queryPurchases(
+                new MergingListener(0, results, failed, listener));
+        mSubscriptionHelper.queryPurchases(
+                new MergingListener(1, results, failed, listener));
+    }
+
+    /**
+     * Sets the validator used to verify the signatures of the purchases of
+     * both product types. See
+     * {@link BillingHelper#setSignatureValidator(SignatureValidator)}.
+     *
+     * @param validator validator used to verify signatures, may be
+     *                  {@code null}
+     */
+    public void setSignatureValidator(SignatureValidator validator) {
+        mManagedProductHelper.setSignatureValidator(validator);
+        mSubscriptionHelper.setSignatureValidator(validator);
+    }
+
+    /**
+     * Enables caching of the queried purchases of both product types. See
+     * {@link BillingHelper#setPurchaseCacheDuration(long)}.
+     *
+     * @param duration time in milliseconds that cached purchases are
+     *                 considered fresh, or {@code 0} to disable the cache
+     */
+    public void setPurchaseCacheDuration(long duration) {
+        mManagedProductHelper.setPurchaseCacheDuration(duration);
+        mSubscriptionHelper.setPurchaseCacheDuration(duration);
+    }
+
+    /**
+     * Sets the executor used to run the requests of both product types. See
+     * {@link BillingHelper#setExecutor(Executor)}.
+     *
+     * @param executor executor to run billing requests, or {@code null} to
+     *                 use the default executor
+     */
+    public void setExecutor(Executor executor) {
+        mManagedProductHelper.setExecutor(executor);
+        mSubscriptionHelper.setExecutor(executor);
+    }
+
+    /**
+     * Sets the executor that delivers the results of requests of both product
+     * types. See {@link BillingHelper#setCallbackExecutor(Executor)}.
+     *
+     * @param executor executor to deliver results, may be {@code null}
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mManagedProductHelper.setCallbackExecutor(executor);
+        mSubscriptionHelper.setCallbackExecutor(executor);
+    }
+
+    /**
+     * Enables or disables coalesced delivery of the results of both product
+     * types. See {@link BillingHelper#setCoalescedCallbacks(boolean)}.
+     *
+     * @param coalesce whether to coalesce the delivery of results
+     */
+    public void setCoalescedCallbacks(boolean coalesce) {
+        mManagedProductHelper.setCoalescedCallbacks(coalesce);
+        mSubscriptionHelper.setCoalescedCallbacks(coalesce);
+    }
+
+    private static class MergingListener
+            implements OnPurchasesQueriedListener {
+        private final int mIndex;
+        private final List<List<Purchase>> mResults;
+        private final boolean[] mFailed;
+        private final OnPurchasesQueriedListener mListener;
+
+        MergingListener(int index, List<List<Purchase>> results,
+                        boolean[] failed, OnPurchasesQueriedListener listener) {
+            mIndex = index;
+            mResults = results;
+            mFailed = failed;
+            mListener = listener;
+        }
+
+        @Override
+        public void onPurchasesQueried(List<Purchase> purchases) {
+            List<Purchase> merged = new ArrayList<>();
+            // the two results may be delivered on different threads
+            synchronized (mResults) {
+                if (mFailed[0]) return;
+                mResults.set(mIndex, purchases);
+                for (List<Purchase> result : mResults) {
+                    if (result == null) return;
+                    merged.addAll(result);
+                }
+            }
+            if (mListener != null) mListener.onPurchasesQueried(merged);
+        }
+
+        @Override
+        public void onError(BillingError error) {
+            synchronized (mResults) {
+                if (mFailed[0]) return;
+                mFailed[0] = true;
+            }
+            if (mListener != null) mListener.onError(error);
+        }
+    }
+}
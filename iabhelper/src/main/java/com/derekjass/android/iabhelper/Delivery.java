@@ -0,0 +1,20 @@
+package com.derekjass.android.iabhelper;
+
+/**
+ * A callback to a listener, waiting to be delivered. A delivery is also its
+ * own node in the queue of a {@link FrameDispatcher}, so queueing it doesn't
+ * allocate anything.
+ */
+abstract class Delivery implements Runnable {
+    // when it was posted to the main thread, or 0 if it wasn't
+    long mPostTime;
+    Delivery mNext;
+
+    @Override
+    public final void run() {
+        if (mPostTime != 0) Metrics.callbackDelivered(mPostTime);
+        deliver();
+    }
+
+    abstract void deliver();
+}
@@ -0,0 +1,90 @@
+package com.derekjass.android.iabhelper;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Delivers callbacks on the main thread in batches. Deliveries posted from
+ * any thread are queued until the start of the next frame, and then all of
+ * them are run from a single main thread message, so the layout changes they
+ * cause are handled in a single pass.
+ * <p/>
+ * Frames are only known from Jelly Bean on. On older versions a batch is
+ * dispatched as soon as the main thread gets to it, which still coalesces
+ * every delivery posted in the meantime.
+ */
+final class FrameDispatcher {
+
+    private static final Object sLock = new Object();
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sScheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                FrameCallback.post();
+            } else {
+                dispatch();
+            }
+        }
+    };
+
+    private static Delivery sHead;
+    private static Delivery sTail;
+    private static boolean sScheduled;
+
+    private FrameDispatcher() {
+    }
+
+    static void post(Delivery delivery) {
+        synchronized (sLock) {
+            delivery.mNext = null;
+            if (sTail == null) {
+                sHead = delivery;
+            } else {
+                sTail.mNext = delivery;
+            }
+            sTail = delivery;
+            if (sScheduled) return;
+            sScheduled = true;
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            sScheduleFrame.run();
+        } else {
+            sHandler.post(sScheduleFrame);
+        }
+    }
+
+    private static void dispatch() {
+        Delivery delivery;
+        synchronized (sLock) {
+            delivery = sHead;
+            sHead = null;
+            sTail = null;
+            sScheduled = false;
+        }
+        while (delivery != null) {
+            Delivery next = delivery.mNext;
+            delivery.mNext = null;
+            delivery.run();
+            delivery = next;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameCallback
+            implements Choreographer.FrameCallback {
+        private static final FrameCallback sInstance = new FrameCallback();
+
+        static void post() {
+            Choreographer.getInstance().postFrameCallback(sInstance);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatch();
+        }
+    }
+}
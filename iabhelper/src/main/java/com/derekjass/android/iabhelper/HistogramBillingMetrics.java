@@ -0,0 +1,169 @@
+package com.derekjass.android.iabhelper;
+
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link BillingMetrics} implementation that collects latency histograms and
+ * counts in memory, to be read and exported periodically by the application.
+ * <p/>
+ * Latencies are counted in buckets whose bounds double in size. Bucket 0
+ * holds latencies below 1 microsecond, and bucket {@code i} holds latencies of
+ * at least 2<sup>i-1</sup> and below 2<sup>i</sup> microseconds, with the last
+ * bucket holding everything longer. Recording a value never allocates or
+ * blocks.
+ */
+public class HistogramBillingMetrics implements BillingMetrics {
+
+    /**
+     * Number of buckets in every histogram. The last bucket holds latencies
+     * of about 18 minutes and longer.
+     */
+    public static final int BUCKET_COUNT = 32;
+
+    private static final int OPERATION_COUNT = Operation.values().length;
+    private static final int ERROR_COUNT = BillingError.values().length;
+
+    private final AtomicLongArray mLatencies;
+    private final AtomicLongArray mResults;
+    private final AtomicLongArray mDeliveries;
+    private final AtomicInteger mMaxQueueDepth;
+
+    public HistogramBillingMetrics() {
+        mLatencies = new AtomicLongArray(OPERATION_COUNT * BUCKET_COUNT);
+        // one column per error, plus one for successes
+        mResults = new AtomicLongArray(OPERATION_COUNT * (ERROR_COUNT + 1));
+        mDeliveries = new AtomicLongArray(BUCKET_COUNT);
+        mMaxQueueDepth = new AtomicInteger();
+    }
+
+    @Override
+    public void onOperationCompleted(Operation operation, long durationNanos,
+                                     BillingError error) {
+        int op = operation.ordinal();
+        mLatencies.incrementAndGet(op * BUCKET_COUNT + bucket(durationNanos));
+        int result = error == null ? ERROR_COUNT : error.ordinal();
+        mResults.incrementAndGet(op * (ERROR_COUNT + 1) + result);
+    }
+
+    @Override
+    public void onQueueDepthChanged(int depth) {
+        // calls may arrive out of order, but every depth was real at some
+        // point, so the maximum is still right
+        int max;
+        while (depth > (max = mMaxQueueDepth.get())) {
+            if (mMaxQueueDepth.compareAndSet(max, depth)) break;
+        }
+    }
+
+    @Override
+    public void onCallbackDelivered(long delayNanos) {
+        mDeliveries.incrementAndGet(bucket(delayNanos));
+    }
+
+    /**
+     * Returns the latency histogram of an operation.
+     *
+     * @param operation the operation
+     * @return the number of completed operations in each bucket
+     */
+    public long[] getLatencyHistogram(Operation operation) {
+        long[] histogram = new long[BUCKET_COUNT];
+        int offset = operation.ordinal() * BUCKET_COUNT;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            histogram[i] = mLatencies.get(offset + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the number of times an operation succeeded.
+     *
+     * @param operation the operation
+     * @return the number of successful operations
+     */
+    public long getSuccessCount(Operation operation) {
+        return mResults.get(operation.ordinal() * (ERROR_COUNT + 1)
+                + ERROR_COUNT);
+    }
+
+    /**
+     * Returns the number of times an operation failed with the given error.
+     *
+     * @param operation the operation
+     * @param error     the error
+     * @return the number of operations that failed with the error
+     */
+    public long getErrorCount(Operation operation, BillingError error) {
+        return mResults.get(operation.ordinal() * (ERROR_COUNT + 1)
+                + error.ordinal());
+    }
+
+    /**
+     * Returns the histogram of the time between posting callbacks to the main
+     * thread and delivering them. Callbacks given to a callback executor and
+     * results of futures are not included.
+     *
+     * @return the number of delivered callbacks in each bucket
+     */
+    public long[] getDeliveryHistogram() {
+        long[] histogram = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            histogram[i] = mDeliveries.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns the number of requests currently queued in the process, read
+     * from the queue itself.
+     *
+     * @return the current queue depth
+     */
+    public int getQueueDepth() {
+        return Metrics.getQueueDepth();
+    }
+
+    /**
+     * Returns the highest number of requests queued at once since this object
+     * was created or last reset.
+     *
+     * @return the maximum queue depth
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth.get();
+    }
+
+    /**
+     * Returns the exclusive upper bound of a histogram bucket.
+     *
+     * @param bucket index of the bucket
+     * @return the upper bound in microseconds, or {@link Long#MAX_VALUE} for
+     * the last bucket
+     */
+    public static long getBucketLimitMicros(int bucket) {
+        if (bucket < 0 || bucket >= BUCKET_COUNT) {
+            throw new IllegalArgumentException("Invalid bucket: " + bucket);
+        }
+        return bucket == BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    /**
+     * Discards everything recorded so far, except the current queue depth.
+     */
+    public void reset() {
+        for (int i = 0; i < mLatencies.length(); i++) mLatencies.set(i, 0);
+        for (int i = 0; i < mResults.length(); i++) mResults.set(i, 0);
+        for (int i = 0; i < mDeliveries.length(); i++) mDeliveries.set(i, 0);
+        mMaxQueueDepth.set(getQueueDepth());
+    }
+
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        if (micros <= 0) return 0;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+}
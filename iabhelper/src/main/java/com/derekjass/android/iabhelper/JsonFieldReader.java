@@ -0,0 +1,244 @@
+package com.derekjass.android.iabhelper;
+
+import org.json.JSONException;
+
+/**
+ * A single pass reader that extracts a few top level fields from a JSON
+ * object without building a tree of the whole object. Only the values of the
+ * requested fields are decoded, every other value is skipped over.
+ * <p/>
+ * String values are returned unescaped, and any other value is returned as its
+ * literal JSON text, which matches the result of
+ * {@link org.json.JSONObject#optString(String)}.
+ */
+final class JsonFieldReader {
+
+    private final String mJson;
+    private final int mLength;
+    private int mPos;
+
+    private JsonFieldReader(String json) {
+        mJson = json;
+        mLength = json.length();
+    }
+
+    /**
+     * Reads the values of the given top level fields of a JSON object.
+     *
+     * @param json JSON object to read
+     * @param keys names of the fields to read
+     * @return the value of each field, in the same order as the keys, with
+     * {@code null} for any field that is not present
+     * @throws JSONException if the JSON is not a valid object
+     */
+    static String[] read(String json, String... keys) throws JSONException {
+        if (json == null) throw new JSONException("json may not be null");
+        return new JsonFieldReader(json).readObject(keys);
+    }
+
+    /**
+     * Parses a numeric field value the same way as
+     * {@link org.json.JSONObject#optLong(String)}.
+     *
+     * @param value value returned by {@link #read(String, String...)}
+     * @return the value as a long, or {@code 0} if it is missing or not a
+     * number
+     */
+    static long toLong(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            try {
+                return (long) Double.parseDouble(value);
+            } catch (NumberFormatException e2) {
+                return 0;
+            }
+        }
+    }
+
+    private String[] readObject(String[] keys) throws JSONException {
+        String[] values = new String[keys.length];
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') return values;
+        while (true) {
+            skipWhitespace();
+            int index = readKey(keys);
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (index >= 0) {
+                values[index] = readValue();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == '}') return values;
+            if (c != ',') throw syntaxError("Expected ',' or '}'");
+        }
+    }
+
+    private int readKey(String[] keys) throws JSONException {
+        expect('"');
+        int start = mPos;
+        int end = start;
+        while (end < mLength) {
+            char c = mJson.charAt(end);
+            if (c == '"') break;
+            if (c == '\\') {
+                // escaped keys are rare, decode them the slow way
+                mPos = start - 1;
+                return indexOf(keys, readString());
+            }
+            end++;
+        }
+        if (end == mLength) throw syntaxError("Unterminated string");
+        mPos = end + 1;
+        int length = end - start;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].length() == length
+                    && mJson.regionMatches(start, keys[i], 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(String[] keys, String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    private String readValue() throws JSONException {
+        char c = peek();
+        if (c == '"') return readString();
+        int start = mPos;
+        skipValue();
+        return mJson.substring(start, mPos);
+    }
+
+    private String readString() throws JSONException {
+        expect('"');
+        StringBuilder builder = null;
+        int start = mPos;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') {
+                if (builder == null) return mJson.substring(start, mPos - 1);
+                builder.append(mJson, start, mPos - 1);
+                return builder.toString();
+            }
+            if (c == '\\') {
+                if (builder == null) builder = new StringBuilder();
+                builder.append(mJson, start, mPos - 1);
+                builder.append(readEscape());
+                start = mPos;
+            }
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private char readEscape() throws JSONException {
+        char c = next();
+        switch (c) {
+            case 'u':
+                if (mPos + 4 > mLength) {
+                    throw syntaxError("Unterminated escape");
+                }
+                try {
+                    char unicode = (char) Integer.parseInt(
+                            mJson.substring(mPos, mPos + 4), 16);
+                    mPos += 4;
+                    return unicode;
+                } catch (NumberFormatException e) {
+                    throw syntaxError("Invalid escape");
+                }
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                return c;
+        }
+    }
+
+    private void skipValue() throws JSONException {
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = peek();
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                mPos++;
+                if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else {
+            int start = mPos;
+            while (mPos < mLength) {
+                c = mJson.charAt(mPos);
+                if (c == ',' || c == '}' || c == ']'
+                        || Character.isWhitespace(c)) {
+                    break;
+                }
+                mPos++;
+            }
+            if (mPos == start) throw syntaxError("Expected a value");
+        }
+    }
+
+    private void skipString() throws JSONException {
+        expect('"');
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') return;
+            if (c == '\\') mPos++;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLength && Character.isWhitespace(mJson.charAt(mPos))) {
+            mPos++;
+        }
+    }
+
+    private char peek() throws JSONException {
+        if (mPos >= mLength) throw syntaxError("Unexpected end of input");
+        return mJson.charAt(mPos);
+    }
+
+    private char next() throws JSONException {
+        char c = peek();
+        mPos++;
+        return c;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (next() != c) throw syntaxError("Expected '" + c + "'");
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at character " + mPos + " of "
+                + mJson);
+    }
+}
@@ -0,0 +1,199 @@
+package com.derekjass.android.iabhelper;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+import com.derekjass.android.iabhelper.BillingMetrics.Operation;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forwards measurements to the {@link BillingMetrics} installed with
+ * {@link BillingHelper#setMetrics(BillingMetrics)}. Every method does nothing
+ * when no metrics are installed.
+ */
+final class Metrics {
+
+    private static volatile BillingMetrics sMetrics;
+    // requests queued on every connection in the process
+    private static final AtomicInteger sQueueDepth = new AtomicInteger();
+
+    private Metrics() {
+    }
+
+    static void setMetrics(BillingMetrics metrics) {
+        sMetrics = metrics;
+    }
+
+    static void operationCompleted(Operation operation, long startNanos,
+                                   BillingError error) {
+        BillingMetrics metrics = sMetrics;
+        if (metrics == null) return;
+        metrics.onOperationCompleted(operation,
+                System.nanoTime() - startNanos, error);
+    }
+
+    static void taskQueued() {
+        queueDepthChanged(sQueueDepth.incrementAndGet());
+    }
+
+    static void taskDequeued() {
+        queueDepthChanged(sQueueDepth.decrementAndGet());
+    }
+
+    /**
+     * Returns the number of requests currently queued in the process.
+     *
+     * @return the current queue depth
+     */
+    static int getQueueDepth() {
+        return sQueueDepth.get();
+    }
+
+    private static void queueDepthChanged(int depth) {
+        BillingMetrics metrics = sMetrics;
+        if (metrics == null) return;
+        metrics.onQueueDepthChanged(depth);
+    }
+
+    static void callbackDelivered(long postNanos) {
+        BillingMetrics metrics = sMetrics;
+        if (metrics == null) return;
+        metrics.onCallbackDelivered(System.nanoTime() - postNanos);
+    }
+
+    /**
+     * Validates a signature, measuring how long the validator takes.
+     *
+     * @param validator validator to use
+     * @param data      signed data
+     * @param signature signature of the data
+     * @return the result of the validator
+     */
+    static boolean validateSignature(SignatureValidator validator, String data,
+                                     String signature) {
+        if (sMetrics == null) {
+            return validator.validateSignature(data, signature);
+        }
+        long start = System.nanoTime();
+        boolean valid = validator.validateSignature(data, signature);
+        operationCompleted(Operation.VALIDATE_SIGNATURE, start,
+                valid ? null : BillingError.INVALID_SIGNATURE);
+        return valid;
+    }
+
+    /**
+     * Returns a billing service that measures every call made to the given
+     * one, or the service itself if no metrics are installed.
+     *
+     * @param service service to measure
+     * @return the service to make calls to
+     */
+    static IInAppBillingService instrument(IInAppBillingService service) {
+        if (sMetrics == null) return service;
+        return new InstrumentedService(service);
+    }
+
+    private static BillingError errorOf(Bundle result) {
+        int resultCode = result.getInt(BillingHelper.RESPONSE_CODE);
+        return resultCode == 0 ? null : BillingError.fromResponseCode(resultCode);
+    }
+
+    private static final class InstrumentedService
+            implements IInAppBillingService {
+
+        private final IInAppBillingService mService;
+
+        InstrumentedService(IInAppBillingService service) {
+            mService = service;
+        }
+
+        @Override
+        public int isBillingSupported(int apiVersion, String packageName,
+                                      String type) throws RemoteException {
+            return mService.isBillingSupported(apiVersion, packageName, type);
+        }
+
+        @Override
+        public Bundle getSkuDetails(int apiVersion, String packageName,
+                                    String type, Bundle skusBundle)
+                throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                Bundle result = mService.getSkuDetails(apiVersion, packageName,
+                        type, skusBundle);
+                operationCompleted(Operation.GET_SKU_DETAILS, start,
+                        errorOf(result));
+                return result;
+            } catch (RemoteException e) {
+                operationCompleted(Operation.GET_SKU_DETAILS, start,
+                        BillingError.REMOTE_EXCEPTION);
+                throw e;
+            }
+        }
+
+        @Override
+        public Bundle getBuyIntent(int apiVersion, String packageName,
+                                   String sku, String type,
+                                   String developerPayload)
+                throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                Bundle result = mService.getBuyIntent(apiVersion, packageName,
+                        sku, type, developerPayload);
+                operationCompleted(Operation.GET_BUY_INTENT, start,
+                        errorOf(result));
+                return result;
+            } catch (RemoteException e) {
+                operationCompleted(Operation.GET_BUY_INTENT, start,
+                        BillingError.REMOTE_EXCEPTION);
+                throw e;
+            }
+        }
+
+        @Override
+        public Bundle getPurchases(int apiVersion, String packageName,
+                                   String type, String continuationToken)
+                throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                Bundle result = mService.getPurchases(apiVersion, packageName,
+                        type, continuationToken);
+                operationCompleted(Operation.GET_PURCHASES, start,
+                        errorOf(result));
+                return result;
+            } catch (RemoteException e) {
+                operationCompleted(Operation.GET_PURCHASES, start,
+                        BillingError.REMOTE_EXCEPTION);
+                throw e;
+            }
+        }
+
+        @Override
+        public int consumePurchase(int apiVersion, String packageName,
+                                   String purchaseToken)
+                throws RemoteException {
+            long start = System.nanoTime();
+            try {
+                int resultCode = mService.consumePurchase(apiVersion,
+                        packageName, purchaseToken);
+                operationCompleted(Operation.CONSUME_PURCHASE, start,
+                        resultCode == 0 ? null
+                                : BillingError.fromResponseCode(resultCode));
+                return resultCode;
+            } catch (RemoteException e) {
+                operationCompleted(Operation.CONSUME_PURCHASE, start,
+                        BillingError.REMOTE_EXCEPTION);
+                throw e;
+            }
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return mService.asBinder();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.derekjass.android.iabhelper;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * An immutable class representing an in-app product listing.
@@ -22,6 +21,8 @@ public class Product {
     private static final String PRICE = "price";
     private static final String TITLE = "title";
     private static final String DESCRIPTION = "description";
+    private static final String[] FIELDS = {PRODUCT_ID, TYPE, PRICE, TITLE,
+            DESCRIPTION};
 
     private final String mProductId;
     private final String mType;
@@ -33,12 +34,12 @@ public class Product {
     Product(String json) {
         mJson = json;
         try {
-            JSONObject jo = new JSONObject(json);
-            mProductId = jo.optString(PRODUCT_ID);
-            mType = jo.optString(TYPE);
-            mPrice = jo.optString(PRICE);
-            mTitle = jo.optString(TITLE);
-            mDescription = jo.optString(DESCRIPTION);
+            String[] values = JsonFieldReader.read(json, FIELDS);
+            mProductId = optString(values[0]);
+            mType = optString(values[1]);
+            mPrice = optString(values[2]);
+            mTitle = optString(values[3]);
+            mDescription = optString(values[4]);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
@@ -118,6 +119,10 @@ public class Product {
         return mType.equals(SUBSCRIPTION);
     }
 
+    private static String optString(String value) {
+        return value != null ? value : "";
+    }
+
     @Override
     public String toString() {
         return "Product: " + mJson;
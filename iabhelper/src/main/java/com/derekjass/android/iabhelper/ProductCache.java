@@ -0,0 +1,86 @@
+package com.derekjass.android.iabhelper;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of the products returned by the billing
+ * service, keyed by product type and product ID. Product titles, descriptions
+ * and prices are localized, so the whole cache is discarded when the default
+ * locale changes.
+ */
+final class ProductCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private static final class CachedProduct {
+        final Product product;
+        final long time;
+
+        CachedProduct(Product product, long time) {
+            this.product = product;
+            this.time = time;
+        }
+    }
+
+    private final LinkedHashMap<String, CachedProduct> mEntries;
+    private Locale mLocale;
+
+    ProductCache() {
+        mEntries = new LinkedHashMap<String, CachedProduct>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CachedProduct> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+        mLocale = Locale.getDefault();
+    }
+
+    /**
+     * Returns the cached product if it was cached less than maxAge
+     * milliseconds ago.
+     *
+     * @param productType type of the product
+     * @param productId   ID of the product
+     * @param maxAge      maximum age of the cached product in milliseconds
+     * @return the cached product, or {@code null} if it isn't cached or is too
+     * old
+     */
+    synchronized Product get(String productType, String productId,
+                             long maxAge) {
+        checkLocale();
+        CachedProduct entry = mEntries.get(key(productType, productId));
+        if (entry == null) return null;
+        if (SystemClock.elapsedRealtime() - entry.time >= maxAge) return null;
+        return entry.product;
+    }
+
+    /**
+     * Adds a product to the cache, replacing any cached product with the same
+     * type and ID.
+     *
+     * @param productType type of the product
+     * @param product     product to cache
+     */
+    synchronized void put(String productType, Product product) {
+        checkLocale();
+        mEntries.put(key(productType, product.getProductId()),
+                new CachedProduct(product, SystemClock.elapsedRealtime()));
+    }
+
+    private void checkLocale() {
+        Locale locale = Locale.getDefault();
+        if (!locale.equals(mLocale)) {
+            mEntries.clear();
+            mLocale = locale;
+        }
+    }
+
+    private static String key(String productType, String productId) {
+        return productType + ':' + productId;
+    }
+}
@@ -1,7 +1,6 @@
 package com.derekjass.android.iabhelper;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
  * An immutable class representing an in-app billing purchase.
@@ -15,6 +14,9 @@ public class Purchase {
     private static final String PURCHASE_STATE = "purchaseState";
     private static final String DEVELOPER_PAYLOAD = "developerPayload";
     private static final String PURCHASE_TOKEN = "purchaseToken";
+    private static final String[] FIELDS = {ORDER_ID, PACKAGE_NAME,
+            PRODUCT_ID, PURCHASE_TIME, PURCHASE_STATE, DEVELOPER_PAYLOAD,
+            PURCHASE_TOKEN};
 
     /**
      * Purchased state: Purchased
@@ -38,19 +40,21 @@ public class Purchase {
     private final String mPurchaseToken;
     private final String mSignature;
     private final String mJson;
+    private final String mProductType;
 
-    Purchase(String json, String signature) {
+    Purchase(String json, String signature, String productType) {
         mSignature = signature;
         mJson = json;
+        mProductType = productType;
         try {
-            JSONObject jo = new JSONObject(json);
-            mOrderId = jo.optString(ORDER_ID);
-            mPackageName = jo.optString(PACKAGE_NAME);
-            mProductId = jo.optString(PRODUCT_ID);
-            mPurchaseTime = jo.optLong(PURCHASE_TIME);
-            mPurchaseState = jo.optInt(PURCHASE_STATE);
-            mDeveloperPayload = jo.optString(DEVELOPER_PAYLOAD);
-            mPurchaseToken = jo.optString(PURCHASE_TOKEN);
+            String[] values = JsonFieldReader.read(json, FIELDS);
+            mOrderId = optString(values[0]);
+            mPackageName = optString(values[1]);
+            mProductId = optString(values[2]);
+            mPurchaseTime = JsonFieldReader.toLong(values[3]);
+            mPurchaseState = (int) JsonFieldReader.toLong(values[4]);
+            mDeveloperPayload = optString(values[5]);
+            mPurchaseToken = optString(values[6]);
         } catch (JSONException e) {
             throw new RuntimeException(e);
         }
@@ -75,6 +79,18 @@ public class Purchase {
         return mPackageName;
     }
 
+    /**
+     * Returns the type of the purchased product, either
+     * {@link Product#MANAGED_PRODUCT} or {@link Product#SUBSCRIPTION}. Unlike
+     * the other properties, this is not part of the signed purchase data, but
+     * recorded from the query that returned the purchase.
+     *
+     * @return the product type of this purchase
+     */
+    public String getProductType() {
+        return mProductType;
+    }
+
     /**
      * Returns the item's ID for this purchase. This is the ID specified for the
      * associated product from the Google play developer console.
@@ -159,6 +175,10 @@ public class Purchase {
         return mPurchaseState == PURCHASE_STATE_PURCHASED;
     }
 
+    private static String optString(String value) {
+        return value != null ? value : "";
+    }
+
     @Override
     public String toString() {
         return "Purchase: " + mJson;
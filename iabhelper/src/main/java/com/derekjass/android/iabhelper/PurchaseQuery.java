@@ -0,0 +1,314 @@
+package com.derekjass.android.iabhelper;
+
+import android.os.Bundle;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+import com.derekjass.android.iabhelper.BillingHelper.OnPurchasesQueriedListener;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A single in-flight purchase query for one product type. Any number of
+ * callers may join the query while it is running, and every one of them
+ * receives the result of the same {@code getPurchases} requests. Signatures are
+ * verified once for each distinct {@link SignatureValidator} among the callers.
+ * <p/>
+ * Each page of purchases is verified on the executor while the next page is
+ * requested from the billing service, so the verification of large purchase
+ * histories overlaps with the IPC instead of following it.
+ * <p/>
+ * Listeners given to this class are called on the worker thread running the
+ * query.
+ */
+final class PurchaseQuery extends BillingConnection.ServiceTask {
+
+    private static final class Waiter {
+        final SignatureValidator validator;
+        final OnPurchasesQueriedListener listener;
+
+        Waiter(SignatureValidator validator,
+               OnPurchasesQueriedListener listener) {
+            this.validator = validator;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Verification of a single page of purchases with a single validator.
+     */
+    private static final class PageVerification
+            extends FutureTask<List<Purchase>> {
+
+        PageVerification(final String productType,
+                         final SignatureValidator validator,
+                         final List<String> jsonList,
+                         final List<String> signatureList) {
+            super(new Callable<List<Purchase>>() {
+                @Override
+                public List<Purchase> call() {
+                    return verify(productType, validator, jsonList,
+                            signatureList);
+                }
+            });
+        }
+
+        /**
+         * Runs the verification on the calling thread, unless another thread
+         * has already started it, and returns the result.
+         */
+        List<Purchase> runAndGet() throws InterruptedException {
+            run();
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private final BillingConnection mConnection;
+    private final String mProductType;
+    private final Executor mExecutor;
+    private final List<Waiter> mWaiters;
+    private final List<List<String>> mJsonPages;
+    private final List<List<String>> mSignaturePages;
+    private final Map<SignatureValidator, List<PageVerification>> mVerifications;
+    // number of callers, in order, that have received their result
+    private int mAnswered;
+
+    PurchaseQuery(BillingConnection connection, String productType,
+                  Executor executor) {
+        mConnection = connection;
+        mProductType = productType;
+        mExecutor = executor;
+        mWaiters = new ArrayList<>();
+        mJsonPages = new ArrayList<>();
+        mSignaturePages = new ArrayList<>();
+        mVerifications = new IdentityHashMap<>();
+    }
+
+    String getProductType() {
+        return mProductType;
+    }
+
+    /**
+     * Adds a caller to this query. Must only be called while the query is
+     * still registered with its connection.
+     *
+     * @param validator validator used to verify the caller's purchases, may be
+     *                  {@code null}
+     * @param listener  listener to receive the result
+     */
+    synchronized void addWaiter(SignatureValidator validator,
+                                OnPurchasesQueriedListener listener) {
+        mWaiters.add(new Waiter(validator, listener));
+    }
+
+    @Override
+    boolean isIdempotent() {
+        return true;
+    }
+
+    @Override
+    void run(IInAppBillingService service) throws DeadObjectException {
+        BillingError error = null;
+        try {
+            String continuationToken = null;
+            do {
+                Bundle result = service.getPurchases(3,
+                        mConnection.getPackageName(), mProductType,
+                        continuationToken);
+
+                int resultCode = result.getInt(BillingHelper.RESPONSE_CODE);
+                if (resultCode != 0) {
+                    error = BillingError.fromResponseCode(resultCode);
+                    break;
+                }
+
+                addPage(result.getStringArrayList(
+                                BillingHelper.INAPP_PURCHASE_DATA_LIST),
+                        result.getStringArrayList(
+                                BillingHelper.INAPP_DATA_SIGNATURE_LIST));
+                continuationToken = result.getString(
+                        BillingHelper.INAPP_CONTINUATION_TOKEN);
+            } while (continuationToken != null);
+        } catch (DeadObjectException e) {
+            // start over from the first page once the service is back
+            cancelVerifications();
+            mVerifications.clear();
+            mJsonPages.clear();
+            mSignaturePages.clear();
+            throw e;
+        } catch (RemoteException e) {
+            error = BillingError.REMOTE_EXCEPTION;
+        }
+
+        if (error != null) {
+            onError(error);
+            return;
+        }
+        // no more callers can join once the query is unregistered
+        mConnection.completePurchaseQuery(this);
+
+        Map<SignatureValidator, List<Purchase>> verified =
+                new IdentityHashMap<>();
+        Map<SignatureValidator, BillingError> failed = new IdentityHashMap<>();
+        while (mAnswered < mWaiters.size()) {
+            Waiter waiter = mWaiters.get(mAnswered);
+            if (!verified.containsKey(waiter.validator)
+                    && !failed.containsKey(waiter.validator)) {
+                try {
+                    List<Purchase> purchases = collect(waiter.validator);
+                    if (purchases != null) {
+                        verified.put(waiter.validator, purchases);
+                    } else {
+                        failed.put(waiter.validator,
+                                BillingError.INVALID_SIGNATURE);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    onError(BillingError.ERROR);
+                    return;
+                } catch (RuntimeException e) {
+                    // e.g. purchase data that isn't valid JSON, or a
+                    // validator that threw
+                    failed.put(waiter.validator, BillingError.ERROR);
+                }
+            }
+            mAnswered++;
+            List<Purchase> purchases = verified.get(waiter.validator);
+            if (purchases != null) {
+                waiter.listener.onPurchasesQueried(new ArrayList<>(purchases));
+            } else {
+                waiter.listener.onError(failed.get(waiter.validator));
+            }
+        }
+    }
+
+    /**
+     * Unregisters the query and delivers the error to every caller that
+     * hasn't received a result yet.
+     *
+     * @param error error to deliver
+     */
+    @Override
+    void onError(BillingError error) {
+        // no more callers can join once the query is unregistered
+        mConnection.completePurchaseQuery(this);
+        cancelVerifications();
+        while (mAnswered < mWaiters.size()) {
+            mWaiters.get(mAnswered++).listener.onError(error);
+        }
+    }
+
+    /**
+     * Records a page and starts verifying it with every validator that has
+     * verified all of the previous pages.
+     */
+    private void addPage(List<String> jsonList, List<String> signatureList) {
+        int page = mJsonPages.size();
+        mJsonPages.add(jsonList);
+        mSignaturePages.add(signatureList);
+        List<SignatureValidator> validators = new ArrayList<>();
+        synchronized (this) {
+            for (Waiter waiter : mWaiters) {
+                validators.add(waiter.validator);
+            }
+        }
+        for (SignatureValidator validator : validators) {
+            List<PageVerification> verifications =
+                    mVerifications.get(validator);
+            if (verifications == null && page == 0) {
+                verifications = new ArrayList<>();
+                mVerifications.put(validator, verifications);
+            }
+            // validators of callers that joined late are caught up at the end
+            if (verifications == null || verifications.size() != page) {
+                continue;
+            }
+            PageVerification verification = new PageVerification(
+                    mProductType, validator, jsonList, signatureList);
+            verifications.add(verification);
+            try {
+                mExecutor.execute(verification);
+            } catch (RejectedExecutionException e) {
+                // run on this thread once every page has been requested
+            }
+        }
+    }
+
+    /**
+     * Waits for, or runs, the verification of every page with the validator.
+     *
+     * @return the verified purchases of every page, or {@code null} if any
+     * signature is invalid
+     */
+    private List<Purchase> collect(SignatureValidator validator)
+            throws InterruptedException {
+        List<PageVerification> verifications = mVerifications.get(validator);
+        if (verifications == null) {
+            verifications = new ArrayList<>(mJsonPages.size());
+        }
+        for (int i = verifications.size(); i < mJsonPages.size(); i++) {
+            verifications.add(new PageVerification(mProductType, validator,
+                    mJsonPages.get(i), mSignaturePages.get(i)));
+        }
+        List<Purchase> purchases = new ArrayList<>();
+        for (PageVerification verification : verifications) {
+            List<Purchase> verified = verification.runAndGet();
+            if (verified == null) return null;
+            purchases.addAll(verified);
+        }
+        return purchases;
+    }
+
+    private void cancelVerifications() {
+        for (List<PageVerification> verifications : mVerifications.values()) {
+            for (PageVerification verification : verifications) {
+                verification.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Verifies the signature of every purchase with the validator.
+     *
+     * @param productType   product type of the purchases
+     * @param validator     validator to verify with, may be {@code null}
+     * @param jsonList      purchase data of each purchase
+     * @param signatureList signature of each purchase
+     * @return the verified purchases, or {@code null} if any signature is
+     * invalid
+     */
+    static List<Purchase> verify(String productType,
+                                 SignatureValidator validator,
+                                 List<String> jsonList,
+                                 List<String> signatureList) {
+        List<Purchase> purchases = new ArrayList<>(jsonList.size());
+        for (int i = 0; i < jsonList.size(); i++) {
+            String json = jsonList.get(i);
+            String signature = signatureList.get(i);
+            if (validator != null && !Metrics.validateSignature(validator,
+                    json, signature)) {
+                return null;
+            }
+            purchases.add(new Purchase(json, signature, productType));
+        }
+        return purchases;
+    }
+}
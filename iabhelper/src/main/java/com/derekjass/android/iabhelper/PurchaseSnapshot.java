@@ -0,0 +1,188 @@
+package com.derekjass.android.iabhelper;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * On-disk copy of the purchases last returned by the billing service for a
+ * single product type. The original purchase data and signatures are stored so
+ * the snapshot can be verified again when it is loaded.
+ * <p/>
+ * Every helper of a product type shares the same snapshot. A snapshot is only
+ * written when its contents change, and writes go to disk asynchronously, so
+ * the helpers sharing a purchase query don't each write the same purchases.
+ * Saves of a query that started before the purchases last changed, see
+ * {@link #invalidate()}, are ignored.
+ * <p/>
+ * Reading a snapshot touches the disk, and should not be done on the main
+ * thread.
+ */
+final class PurchaseSnapshot {
+
+    private static final String PREFS_NAME = "com.derekjass.android.iabhelper.purchases";
+    private static final String JSON = "json";
+    private static final String SIGNATURE = "signature";
+
+    // shared by the snapshots of every helper in the process
+    private static final Object sLock = new Object();
+    private static final Map<String, Integer> sGenerations = new HashMap<>();
+    private static final Map<String, String> sSaved = new HashMap<>();
+
+    private final Context mContext;
+    private final String mProductType;
+
+    PurchaseSnapshot(Context context, String productType) {
+        mContext = context.getApplicationContext();
+        mProductType = productType;
+    }
+
+    /**
+     * Returns the current generation of the snapshot, to be passed to
+     * {@link #save(List, int)} with the result of a query started now.
+     *
+     * @return the current generation
+     */
+    int getGeneration() {
+        synchronized (sLock) {
+            Integer generation = sGenerations.get(mProductType);
+            return generation != null ? generation : 0;
+        }
+    }
+
+    /**
+     * Marks the purchases of the product type as changed, so that queries
+     * started before now can no longer save their results.
+     */
+    void invalidate() {
+        synchronized (sLock) {
+            sGenerations.put(mProductType, getGeneration() + 1);
+        }
+    }
+
+    /**
+     * Replaces the stored snapshot with the given purchases, unless the
+     * purchases changed since the query that returned them started, or they
+     * are already stored.
+     *
+     * @param purchases  purchases to store
+     * @param generation generation of the snapshot when the query started
+     */
+    void save(List<Purchase> purchases, int generation) {
+        JSONArray array = new JSONArray();
+        try {
+            for (Purchase purchase : purchases) {
+                JSONObject jo = new JSONObject();
+                jo.put(JSON, purchase.getJson());
+                jo.put(SIGNATURE, purchase.getSignature());
+                array.put(jo);
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        String value = array.toString();
+        synchronized (sLock) {
+            if (generation != getGeneration()
+                    || value.equals(sSaved.get(mProductType))) {
+                return;
+            }
+            write(value);
+        }
+    }
+
+    /**
+     * Removes the given purchases from the stored snapshot, and invalidates
+     * the snapshot.
+     *
+     * @param consumed purchases to remove
+     */
+    void remove(Collection<Purchase> consumed) {
+        Set<String> tokens = new HashSet<>();
+        for (Purchase purchase : consumed) {
+            tokens.add(purchase.getPurchaseToken());
+        }
+        synchronized (sLock) {
+            invalidate();
+            String stored = getPreferences().getString(mProductType, null);
+            if (stored == null) return;
+            try {
+                JSONArray array = new JSONArray(stored);
+                JSONArray remaining = new JSONArray();
+                for (int i = 0; i < array.length(); i++) {
+                    JSONObject jo = array.getJSONObject(i);
+                    Purchase purchase = new Purchase(jo.getString(JSON),
+                            jo.optString(SIGNATURE, null), mProductType);
+                    if (!tokens.contains(purchase.getPurchaseToken())) {
+                        remaining.put(jo);
+                    }
+                }
+                write(remaining.toString());
+            } catch (JSONException e) {
+                clear();
+            }
+        }
+    }
+
+    private void write(String value) {
+        sSaved.put(mProductType, value);
+        getPreferences().edit().putString(mProductType, value).apply();
+    }
+
+    /**
+     * Loads the stored snapshot, verifying every purchase with the validator.
+     * A snapshot that fails verification or can't be read is deleted.
+     *
+     * @param validator validator used to verify the stored signatures, may be
+     *                  {@code null}
+     * @return the stored purchases, or {@code null} if there is no valid
+     * snapshot
+     */
+    List<Purchase> load(SignatureValidator validator) {
+        String stored = getPreferences().getString(mProductType, null);
+        if (stored == null) return null;
+        try {
+            JSONArray array = new JSONArray(stored);
+            List<Purchase> purchases = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject jo = array.getJSONObject(i);
+                String json = jo.getString(JSON);
+                String signature = jo.optString(SIGNATURE, null);
+                if (validator != null && !Metrics.validateSignature(
+                        validator, json, signature)) {
+                    clear();
+                    return null;
+                }
+                purchases.add(new Purchase(json, signature, mProductType));
+            }
+            return purchases;
+        } catch (JSONException e) {
+            clear();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the stored snapshot.
+     */
+    void clear() {
+        synchronized (sLock) {
+            sSaved.remove(mProductType);
+            getPreferences().edit().remove(mProductType).apply();
+        }
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
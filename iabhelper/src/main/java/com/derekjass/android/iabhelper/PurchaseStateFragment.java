@@ -159,6 +159,7 @@ public abstract class PurchaseStateFragment extends Fragment {
         super.onResume();
         if (mPurchaseState == null) {
             setPurchaseState(PurchaseState.DEFAULT);
+            loadPurchaseSnapshot();
         }
         refreshPurchaseState();
     }
@@ -237,20 +238,39 @@ public abstract class PurchaseStateFragment extends Fragment {
 
             @Override
             public void onPurchasesQueried(List<Purchase> purchases) {
-                boolean purchased = false;
-                for (Purchase purchase : purchases) {
-                    if (purchase.getProductId().equals(mProductId)) {
-                        purchased = purchase.isPurchased();
-                        mPurchase = purchased ? purchase : null;
-                        break;
-                    }
-                }
-                setPurchaseState(purchased ? PurchaseState.PURCHASED
-                        : PurchaseState.NOT_PURCHASED);
+                updatePurchaseState(purchases);
             }
         });
     }
 
+    private void loadPurchaseSnapshot() {
+        mBillingHelper.queryPurchaseSnapshot(new OnPurchasesQueriedListener() {
+            @Override
+            public void onError(BillingError error) {
+            }
+
+            @Override
+            public void onPurchasesQueried(List<Purchase> purchases) {
+                // the live query has already determined the state
+                if (mPurchaseState != PurchaseState.DEFAULT) return;
+                updatePurchaseState(purchases);
+            }
+        });
+    }
+
+    private void updatePurchaseState(List<Purchase> purchases) {
+        boolean purchased = false;
+        for (Purchase purchase : purchases) {
+            if (purchase.getProductId().equals(mProductId)) {
+                purchased = purchase.isPurchased();
+                mPurchase = purchased ? purchase : null;
+                break;
+            }
+        }
+        setPurchaseState(purchased ? PurchaseState.PURCHASED
+                : PurchaseState.NOT_PURCHASED);
+    }
+
     /**
      * Triggers the purchasing process for the associated product. The
      * requestCode parameter is used to identify this request's matching result
@@ -333,6 +353,33 @@ public abstract class PurchaseStateFragment extends Fragment {
         mBillingHelper.setSignatureValidator(validator);
     }
 
+    /**
+     * Enables caching of the purchases queried by this fragment, so that
+     * refreshing the purchase state when the fragment resumes does not always
+     * require a request to the billing service. See
+     * {@link BillingHelper#setPurchaseCacheDuration(long)} for details.
+     *
+     * @param duration time in milliseconds that cached purchases are
+     *                 considered fresh, or {@code 0} to disable the cache
+     */
+    public void setPurchaseCacheDuration(long duration) {
+        mBillingHelper.setPurchaseCacheDuration(duration);
+    }
+
+    /**
+     * Enables saving the purchase state of this fragment's product type to
+     * disk. When enabled, a newly created fragment immediately reports the
+     * purchase state it last saw, after verifying it with the signature
+     * validator, while the current state is still being queried from the
+     * billing service. See
+     * {@link BillingHelper#setPurchaseSnapshotEnabled(boolean)} for details.
+     *
+     * @param enabled {@code true} to enable purchase snapshots
+     */
+    public void setPurchaseSnapshotEnabled(boolean enabled) {
+        mBillingHelper.setPurchaseSnapshotEnabled(enabled);
+    }
+
     /**
      * Creates a new Bundle to hold the required arguments for the fragment.
      *
@@ -0,0 +1,299 @@
+package com.derekjass.android.iabhelper;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.derekjass.android.iabhelper.PurchaseStateFragment.PurchaseState;
+import com.derekjass.android.iabhelper.PurchaseStateTracker.OnPurchaseStateChangedListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A stream of the purchase state changes of the products tracked by a
+ * {@link PurchaseStateTracker}, for any number of subscribers. Every
+ * subscriber shares the queries of the tracker, so subscribing doesn't make
+ * any billing requests of its own; the tracker is still connected and
+ * refreshed by its owner.
+ * <p/>
+ * A new subscriber first receives the current state of every tracked
+ * product, and then every change. Updates are deduplicated: a subscriber
+ * never receives the same state and purchase for a product twice in a row.
+ * <p/>
+ * Subscribers control how fast they receive updates with
+ * {@link Subscription#request(long)}, much like Reactive Streams. While a
+ * subscriber has no outstanding demand, only the latest update of each
+ * product is kept for it, so a slow subscriber never holds more than one
+ * pending update per product, and receives the newest state once it asks for
+ * more.
+ * <p/>
+ * Subscribing and receiving updates happen on the main thread of the app.
+ * {@link Subscription#request(long)} and {@link Subscription#cancel()} may be
+ * called on any thread.
+ */
+public class PurchaseStateStream {
+
+    /**
+     * Receives the updates of a {@link PurchaseStateStream}.
+     */
+    public interface Subscriber {
+        /**
+         * Called once when subscribing, before any update is delivered.
+         * Nothing is delivered until updates are requested from the
+         * subscription.
+         *
+         * @param subscription subscription to request updates or cancel
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the latest purchase state of a product.
+         *
+         * @param update the purchase state of the product
+         */
+        public void onNext(Update update);
+    }
+
+    /**
+     * The link between a {@link PurchaseStateStream} and one of its
+     * subscribers.
+     */
+    public interface Subscription {
+        /**
+         * Requests up to n more updates. Use {@link Long#MAX_VALUE} to
+         * receive every update as soon as it happens.
+         *
+         * @param n number of updates to request, must be positive
+         */
+        public void request(long n);
+
+        /**
+         * Stops the delivery of updates to the subscriber.
+         */
+        public void cancel();
+    }
+
+    /**
+     * The purchase state of a product at one point in time.
+     */
+    public static final class Update {
+        private final String mProductId;
+        private final PurchaseState mState;
+        private final Purchase mPurchase;
+
+        Update(String productId, PurchaseState state, Purchase purchase) {
+            mProductId = productId;
+            mState = state;
+            mPurchase = purchase;
+        }
+
+        /**
+         * Returns the product ID of the product.
+         *
+         * @return product ID of the product
+         */
+        public String getProductId() {
+            return mProductId;
+        }
+
+        /**
+         * Returns the purchase state of the product.
+         *
+         * @return purchase state of the product
+         */
+        public PurchaseState getState() {
+            return mState;
+        }
+
+        /**
+         * Returns the purchase of the product.
+         *
+         * @return purchase of the product, or {@code null} if the product is
+         * not purchased
+         */
+        public Purchase getPurchase() {
+            return mPurchase;
+        }
+
+        boolean isSameAs(Update other) {
+            if (other == null || mState != other.mState) return false;
+            if (mPurchase == null || other.mPurchase == null) {
+                return mPurchase == other.mPurchase;
+            }
+            return mPurchase.getPurchaseToken().equals(
+                    other.mPurchase.getPurchaseToken());
+        }
+    }
+
+    private final PurchaseStateTracker mTracker;
+    private final Handler mHandler;
+    private final List<SubscriptionImpl> mSubscriptions;
+    private final OnPurchaseStateChangedListener mUpstream;
+
+    /**
+     * Creates a stream of the purchase state changes of the products tracked
+     * by the given tracker.
+     *
+     * @param tracker tracker of the products
+     */
+    public PurchaseStateStream(PurchaseStateTracker tracker) {
+        if (tracker == null) {
+            throw new IllegalArgumentException("tracker may not be null");
+        }
+        mTracker = tracker;
+        mHandler = new Handler(Looper.getMainLooper());
+        mSubscriptions = new ArrayList<>();
+        mUpstream = new OnPurchaseStateChangedListener() {
+            @Override
+            public void onPurchaseStateChanged(String productId,
+                                               PurchaseState state,
+                                               Purchase purchase) {
+                Update update = new Update(productId, state, purchase);
+                // subscribers may cancel while being notified
+                for (SubscriptionImpl subscription
+                        : new ArrayList<>(mSubscriptions)) {
+                    subscription.offer(update);
+                }
+            }
+        };
+    }
+
+    /**
+     * Subscribes to the purchase state changes of every tracked product. Must
+     * be called on the main thread.
+     *
+     * @param subscriber subscriber to receive updates
+     */
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) {
+            throw new IllegalArgumentException("subscriber may not be null");
+        }
+        if (mSubscriptions.isEmpty()) {
+            for (String productId : mTracker.getProductIds()) {
+                mTracker.addListener(productId, mUpstream);
+            }
+        }
+        SubscriptionImpl subscription = new SubscriptionImpl(subscriber);
+        mSubscriptions.add(subscription);
+        for (String productId : mTracker.getProductIds()) {
+            subscription.offer(new Update(productId,
+                    mTracker.getPurchaseState(productId),
+                    mTracker.getPurchase(productId)));
+        }
+        subscriber.onSubscribe(subscription);
+    }
+
+    private void unsubscribe(SubscriptionImpl subscription) {
+        if (!mSubscriptions.remove(subscription)) return;
+        if (mSubscriptions.isEmpty()) {
+            for (String productId : mTracker.getProductIds()) {
+                mTracker.removeListener(productId, mUpstream);
+            }
+        }
+    }
+
+    private final class SubscriptionImpl implements Subscription {
+        private final Subscriber mSubscriber;
+        // latest undelivered update of each product
+        private final Map<String, Update> mPending;
+        // last update delivered for each product, to drop repeats
+        private final Map<String, Update> mDelivered;
+        private final Runnable mDrain;
+        private long mDemand;
+        private boolean mCancelled;
+        private boolean mDraining;
+
+        SubscriptionImpl(Subscriber subscriber) {
+            mSubscriber = subscriber;
+            mPending = new LinkedHashMap<>();
+            mDelivered = new HashMap<>();
+            mDrain = new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+        }
+
+        void offer(Update update) {
+            synchronized (this) {
+                if (mCancelled) return;
+                // an older pending update of the product is conflated away
+                mPending.remove(update.getProductId());
+                mPending.put(update.getProductId(), update);
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                throw new IllegalArgumentException("n must be positive");
+            }
+            synchronized (this) {
+                if (mCancelled) return;
+                mDemand += n;
+                if (mDemand < 0) mDemand = Long.MAX_VALUE;
+            }
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                drain();
+            } else {
+                mHandler.post(mDrain);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (mCancelled) return;
+                mCancelled = true;
+                mPending.clear();
+            }
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                unsubscribe(this);
+            } else {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        unsubscribe(SubscriptionImpl.this);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Delivers pending updates while there is demand for them. Only runs
+         * on the main thread, and never reentrantly.
+         */
+        private void drain() {
+            if (mDraining) return;
+            mDraining = true;
+            try {
+                while (true) {
+                    Update update;
+                    synchronized (this) {
+                        if (mCancelled || mDemand == 0 || mPending.isEmpty()) {
+                            return;
+                        }
+                        Iterator<Update> it = mPending.values().iterator();
+                        update = it.next();
+                        it.remove();
+                        if (update.isSameAs(
+                                mDelivered.get(update.getProductId()))) {
+                            continue;
+                        }
+                        mDelivered.put(update.getProductId(), update);
+                        if (mDemand != Long.MAX_VALUE) mDemand--;
+                    }
+                    mSubscriber.onNext(update);
+                }
+            } finally {
+                mDraining = false;
+            }
+        }
+    }
+}
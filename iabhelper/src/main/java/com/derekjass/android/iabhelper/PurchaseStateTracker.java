@@ -0,0 +1,302 @@
+package com.derekjass.android.iabhelper;
+
+import android.content.Context;
+
+import com.derekjass.android.iabhelper.BillingHelper.BillingError;
+import com.derekjass.android.iabhelper.BillingHelper.OnErrorListener;
+import com.derekjass.android.iabhelper.BillingHelper.OnPurchasesQueriedListener;
+import com.derekjass.android.iabhelper.PurchaseStateFragment.PurchaseState;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the purchase state of any number of managed products and
+ * subscriptions without a user interface. Where a
+ * {@link PurchaseStateFragment} tracks a single product with its own purchase
+ * query, this class runs one query per product type for every tracked product
+ * and looks each product up in an index of the purchases returned.
+ * <p/>
+ * Changes to the purchase state of a product are delivered to the listeners
+ * registered for that product with
+ * {@link #addListener(String, OnPurchaseStateChangedListener)}. Every product
+ * starts in the {@link PurchaseState#DEFAULT} state, and moves to
+ * {@link PurchaseState#UNKNOWN} if its product type could not be queried.
+ * <p/>
+ * Like {@link BillingHelper}, a tracker must be connected before use, usually
+ * in the onStart/onStop methods of an Activity. All methods must be called,
+ * and all listeners are called, on the main thread of the app.
+ */
+public class PurchaseStateTracker {
+
+    /**
+     * Callback to deliver changes to the purchase state of a tracked product.
+     */
+    public interface OnPurchaseStateChangedListener {
+        /**
+         * Called when the purchase state of a tracked product has changed.
+         *
+         * @param productId product ID of the product
+         * @param state     the new purchase state of the product
+         * @param purchase  the purchase of the product, or {@code null} if
+         *                  the product is not purchased
+         */
+        public void onPurchaseStateChanged(String productId,
+                                           PurchaseState state,
+                                           Purchase purchase);
+    }
+
+    private static final class TrackedProduct {
+        final String productType;
+        final List<OnPurchaseStateChangedListener> listeners;
+        PurchaseState state;
+        Purchase purchase;
+
+        TrackedProduct(String productType) {
+            this.productType = productType;
+            this.listeners = new ArrayList<>();
+            this.state = PurchaseState.DEFAULT;
+        }
+    }
+
+    private final Map<String, TrackedProduct> mProducts;
+    private final BillingHelper mManagedProductHelper;
+    private final BillingHelper mSubscriptionHelper;
+    private OnErrorListener mErrorListener;
+
+    /**
+     * Creates a tracker for the given products. Either collection may be
+     * empty, in which case that product type is never queried.
+     *
+     * @param context          application context
+     * @param managedProductIds product IDs of the managed products to track
+     * @param subscriptionIds   product IDs of the subscriptions to track
+     */
+    public PurchaseStateTracker(Context context,
+                                Collection<String> managedProductIds,
+                                Collection<String> subscriptionIds) {
+        if (context == null || managedProductIds == null
+                || subscriptionIds == null) {
+            throw new IllegalArgumentException(
+                    "context and product IDs may not be null");
+        }
+        mProducts = new LinkedHashMap<>();
+        for (String productId : managedProductIds) {
+            track(productId, Product.MANAGED_PRODUCT);
+        }
+        for (String productId : subscriptionIds) {
+            track(productId, Product.SUBSCRIPTION);
+        }
+        mManagedProductHelper = managedProductIds.isEmpty() ? null
+                : BillingHelper.newManagedProductHelper(context);
+        mSubscriptionHelper = subscriptionIds.isEmpty() ? null
+                : BillingHelper.newSubscriptionHelper(context);
+    }
+
+    private void track(String productId, String productType) {
+        if (productId == null) {
+            throw new IllegalArgumentException("product IDs may not be null");
+        }
+        if (mProducts.containsKey(productId)) {
+            throw new IllegalArgumentException(
+                    "Product " + productId + " is listed more than once");
+        }
+        mProducts.put(productId, new TrackedProduct(productType));
+    }
+
+    /**
+     * Connects to the billing service. See {@link BillingHelper#connect()}.
+     */
+    public void connect() {
+        if (mManagedProductHelper != null) mManagedProductHelper.connect();
+        if (mSubscriptionHelper != null) mSubscriptionHelper.connect();
+    }
+
+    /**
+     * Disconnects from the billing service. See
+     * {@link BillingHelper#disconnect()}.
+     */
+    public void disconnect() {
+        if (mManagedProductHelper != null) mManagedProductHelper.disconnect();
+        if (mSubscriptionHelper != null) mSubscriptionHelper.disconnect();
+    }
+
+    /**
+     * Queries the purchases of every tracked product type, and notifies the
+     * listeners of every product whose purchase state has changed.
+     */
+    public void refresh() {
+        refresh(mManagedProductHelper, Product.MANAGED_PRODUCT);
+        refresh(mSubscriptionHelper, Product.SUBSCRIPTION);
+    }
+
+    private void refresh(BillingHelper helper, final String productType) {
+        if (helper == null) return;
+        helper.queryPurchases(new OnPurchasesQueriedListener() {
+            @Override
+            public void onPurchasesQueried(List<Purchase> purchases) {
+                Map<String, Purchase> index =
+                        new HashMap<>(purchases.size() * 2);
+                for (Purchase purchase : purchases) {
+                    if (purchase.isPurchased()) {
+                        index.put(purchase.getProductId(), purchase);
+                    }
+                }
+                for (Map.Entry<String, TrackedProduct> entry
+                        : mProducts.entrySet()) {
+                    if (!entry.getValue().productType.equals(productType)) {
+                        continue;
+                    }
+                    Purchase purchase = index.get(entry.getKey());
+                    update(entry.getKey(), entry.getValue(),
+                            purchase != null ? PurchaseState.PURCHASED
+                                    : PurchaseState.NOT_PURCHASED, purchase);
+                }
+            }
+
+            @Override
+            public void onError(BillingError error) {
+                for (Map.Entry<String, TrackedProduct> entry
+                        : mProducts.entrySet()) {
+                    if (entry.getValue().productType.equals(productType)) {
+                        update(entry.getKey(), entry.getValue(),
+                                PurchaseState.UNKNOWN, null);
+                    }
+                }
+                if (mErrorListener != null) mErrorListener.onError(error);
+            }
+        });
+    }
+
+    private void update(String productId, TrackedProduct product,
+                        PurchaseState state, Purchase purchase) {
+        boolean changed = product.state != state
+                || (purchase != null && product.purchase != null
+                && !purchase.getPurchaseToken().equals(
+                product.purchase.getPurchaseToken()));
+        product.state = state;
+        product.purchase = purchase;
+        if (!changed) return;
+        // listeners may unregister themselves while being notified
+        for (OnPurchaseStateChangedListener listener
+                : new ArrayList<>(product.listeners)) {
+            listener.onPurchaseStateChanged(productId, state, purchase);
+        }
+    }
+
+    /**
+     * Registers a listener for changes to the purchase state of a tracked
+     * product.
+     *
+     * @param productId product ID of a tracked product
+     * @param listener  listener to register
+     */
+    public void addListener(String productId,
+                            OnPurchaseStateChangedListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener may not be null");
+        }
+        getTrackedProduct(productId).listeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener registered with
+     * {@link #addListener(String, OnPurchaseStateChangedListener)}.
+     *
+     * @param productId product ID of a tracked product
+     * @param listener  listener to unregister
+     */
+    public void removeListener(String productId,
+                               OnPurchaseStateChangedListener listener) {
+        getTrackedProduct(productId).listeners.remove(listener);
+    }
+
+    /**
+     * Sets a listener to receive any errors that occur while querying
+     * purchases.
+     *
+     * @param listener listener to receive errors, may be {@code null}
+     */
+    public void setOnErrorListener(OnErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    /**
+     * Returns the known purchase state of a tracked product.
+     *
+     * @param productId product ID of a tracked product
+     * @return the purchase state of the product
+     */
+    public PurchaseState getPurchaseState(String productId) {
+        return getTrackedProduct(productId).state;
+    }
+
+    /**
+     * Returns the purchase of a tracked product.
+     *
+     * @param productId product ID of a tracked product
+     * @return the purchase of the product, or {@code null} if the product is
+     * not known to be purchased
+     */
+    public Purchase getPurchase(String productId) {
+        return getTrackedProduct(productId).purchase;
+    }
+
+    /**
+     * Sets the validator used to verify the signatures of the purchases of
+     * every product type. See
+     * {@link BillingHelper#setSignatureValidator(SignatureValidator)}.
+     *
+     * @param validator validator used to verify signatures, may be
+     *                  {@code null}
+     */
+    public void setSignatureValidator(SignatureValidator validator) {
+        if (mManagedProductHelper != null) {
+            mManagedProductHelper.setSignatureValidator(validator);
+        }
+        if (mSubscriptionHelper != null) {
+            mSubscriptionHelper.setSignatureValidator(validator);
+        }
+    }
+
+    /**
+     * Enables caching of the queried purchases of every product type. See
+     * {@link BillingHelper#setPurchaseCacheDuration(long)}.
+     *
+     * @param duration time in milliseconds that cached purchases are
+     *                 considered fresh, or {@code 0} to disable the cache
+     */
+    public void setPurchaseCacheDuration(long duration) {
+        if (mManagedProductHelper != null) {
+            mManagedProductHelper.setPurchaseCacheDuration(duration);
+        }
+        if (mSubscriptionHelper != null) {
+            mSubscriptionHelper.setPurchaseCacheDuration(duration);
+        }
+    }
+
+    /**
+     * Returns the product IDs of every tracked product, managed products
+     * first.
+     *
+     * @return an unmodifiable set of the tracked product IDs
+     */
+    public Set<String> getProductIds() {
+        return Collections.unmodifiableSet(mProducts.keySet());
+    }
+
+    private TrackedProduct getTrackedProduct(String productId) {
+        TrackedProduct product = mProducts.get(productId);
+        if (product == null) {
+            throw new IllegalArgumentException(
+                    "Product " + productId + " is not tracked");
+        }
+        return product;
+    }
+}
@@ -0,0 +1,75 @@
+package com.derekjass.android.iabhelper;
+
+import android.util.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * A {@link SignatureValidator} that verifies purchase signatures with the
+ * RSA public key of the application, as found in the Google Play developer
+ * console.
+ * <p/>
+ * The public key is decoded once when the validator is created, and each
+ * thread reuses its own {@link Signature} instance, so a single validator may
+ * be shared by every helper and used from many threads at once.
+ */
+public class RsaSignatureValidator implements SignatureValidator {
+
+    private static final String KEY_ALGORITHM = "RSA";
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    private final PublicKey mPublicKey;
+    private final ThreadLocal<Signature> mSignature;
+
+    /**
+     * Creates a validator for the given public key.
+     *
+     * @param base64PublicKey the Base64 encoded public key of the application
+     */
+    public RsaSignatureValidator(String base64PublicKey) {
+        if (base64PublicKey == null) {
+            throw new IllegalArgumentException(
+                    "base64PublicKey may not be null");
+        }
+        try {
+            byte[] key = Base64.decode(base64PublicKey, Base64.DEFAULT);
+            mPublicKey = KeyFactory.getInstance(KEY_ALGORITHM)
+                    .generatePublic(new X509EncodedKeySpec(key));
+        } catch (IllegalArgumentException | GeneralSecurityException e) {
+            throw new IllegalArgumentException("Invalid public key", e);
+        }
+        mSignature = new ThreadLocal<Signature>() {
+            @Override
+            protected Signature initialValue() {
+                try {
+                    return Signature.getInstance(SIGNATURE_ALGORITHM);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean validateSignature(String data, String signature) {
+        if (data == null || signature == null || signature.isEmpty()) {
+            return false;
+        }
+        try {
+            byte[] signatureBytes = Base64.decode(signature, Base64.DEFAULT);
+            Signature verifier = mSignature.get();
+            verifier.initVerify(mPublicKey);
+            verifier.update(data.getBytes("UTF-8"));
+            return verifier.verify(signatureBytes);
+        } catch (IllegalArgumentException | GeneralSecurityException
+                | UnsupportedEncodingException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.derekjass.android.iabhelper;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachingSignatureValidatorTest {
+
+    /**
+     * Accepts signatures equal to "ok", and counts its calls.
+     */
+    private static class CountingValidator implements SignatureValidator {
+        int mCalls;
+
+        @Override
+        public boolean validateSignature(String data, String signature) {
+            mCalls++;
+            return "ok".equals(signature);
+        }
+    }
+
+    private CountingValidator mValidator;
+
+    @Before
+    public void setUp() {
+        mValidator = new CountingValidator();
+    }
+
+    @Test
+    public void remembersResults() {
+        CachingSignatureValidator validator =
+                new CachingSignatureValidator(mValidator);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(validator.validateSignature("data", "ok"));
+            assertFalse(validator.validateSignature("data", "bad"));
+        }
+        assertEquals(2, mValidator.mCalls);
+    }
+
+    @Test
+    public void keepsDataAndSignatureApart() {
+        CachingSignatureValidator validator =
+                new CachingSignatureValidator(mValidator);
+        assertTrue(validator.validateSignature("data", "ok"));
+        assertFalse(validator.validateSignature("datao", "k"));
+        assertFalse(validator.validateSignature("data", null));
+        assertFalse(validator.validateSignature(null, "data"));
+        assertEquals(4, mValidator.mCalls);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        CachingSignatureValidator validator =
+                new CachingSignatureValidator(mValidator, 2);
+        validator.validateSignature("a", "ok");
+        validator.validateSignature("b", "ok");
+        validator.validateSignature("a", "ok");
+        validator.validateSignature("c", "ok");
+        assertEquals(3, mValidator.mCalls);
+
+        // "b" was evicted, "a" was used more recently
+        validator.validateSignature("a", "ok");
+        assertEquals(3, mValidator.mCalls);
+        validator.validateSignature("b", "ok");
+        assertEquals(4, mValidator.mCalls);
+    }
+
+    @Test
+    public void clearForgetsResults() {
+        CachingSignatureValidator validator =
+                new CachingSignatureValidator(mValidator);
+        validator.validateSignature("data", "ok");
+        validator.clear();
+        validator.validateSignature("data", "ok");
+        assertEquals(2, mValidator.mCalls);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveSize() {
+        new CachingSignatureValidator(mValidator, 0);
+    }
+}
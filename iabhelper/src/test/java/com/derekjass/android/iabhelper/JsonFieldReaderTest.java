@@ -0,0 +1,152 @@
+package com.derekjass.android.iabhelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link Purchase} and {@link Product}, which read their fields
+ * with {@link JsonFieldReader}, see the same values as reading the JSON with
+ * {@link JSONObject#optString(String)} and friends, as the library originally
+ * did.
+ */
+public class JsonFieldReaderTest {
+
+    private static final String[] PURCHASES = {
+            "{\"orderId\":\"12999763169054705758.1371079406387615\","
+                    + "\"packageName\":\"com.example.app\","
+                    + "\"productId\":\"exampleSku\","
+                    + "\"purchaseTime\":1345678900000,"
+                    + "\"purchaseState\":0,"
+                    + "\"developerPayload\":"
+                    + "\"bGoa+V7g/yqDXvKRqq+JTFn4uQZbPiQJo4pf9RzJ\","
+                    + "\"purchaseToken\":"
+                    + "\"opaque-token-up-to-1000-characters\"}",
+            // escapes, including the \/ that org.json writes for every slash
+            "{\"productId\":\"a\\\"b\\\\c\\/d\",\"developerPayload\":"
+                    + "\"line\\nbreak\\ttab\\r\\b\\f"
+                    + " \\u00e9\\u4e2d\\uD83D\\uDE00\","
+                    + "\"purchaseToken\":\"\\u0041\\u005a\"}",
+            // whitespace between every token
+            " \n{ \"orderId\" :\t\"1\" ,\r\n \"purchaseTime\" : 42 ,"
+                    + " \"purchaseState\" : 1 } \n",
+            // nested values, with keys and brackets inside their strings
+            "{\"extra\":{\"productId\":\"nested\",\"list\":[1,{\"a\":\"}]\"},"
+                    + "[]]},\"more\":[\"productId\",{\"purchaseToken\":\"x\"}],"
+                    + "\"productId\":\"top\",\"flag\":true,\"none\":null,"
+                    + "\"purchaseToken\":\"t\"}",
+            // values that are not strings
+            "{\"orderId\":12345,\"productId\":true,"
+                    + "\"purchaseTime\":\"1345678900000\","
+                    + "\"purchaseState\":\"2\","
+                    + "\"purchaseToken\":-1.5E12}",
+            "{\"purchaseTime\":1.5E12,\"purchaseState\":-1}",
+            // every field missing
+            "{}",
+            "{\"unrelated\":\"value\"}",
+    };
+
+    private static final String[] PRODUCTS = {
+            "{\"productId\":\"exampleSku\",\"type\":\"inapp\","
+                    + "\"price\":\"$5.00\",\"title\":\"Example Title\","
+                    + "\"description\":\"This is an example description\"}",
+            "{\"productId\":\"sku\",\"price\":\"\\u20ac5,00\","
+                    + "\"price_amount_micros\":5000000,"
+                    + "\"title\":\"T\\u00eftle (Example)\","
+                    + "\"description\":\"Line one\\nLine \\\"two\\\"\"}",
+            "{ \"type\" : \"subs\" , \"extra\" : [ { \"title\" : \"no\" } ] }",
+            "{}",
+    };
+
+    @Test
+    public void purchaseMatchesJsonObject() throws Exception {
+        for (String json : PURCHASES) {
+            Purchase purchase = new Purchase(json, "sig",
+                    Product.MANAGED_PRODUCT);
+            JSONObject jo = new JSONObject(json);
+            assertEquals(json, jo.optString("orderId"), purchase.getOrderId());
+            assertEquals(json, jo.optString("packageName"),
+                    purchase.getPackageName());
+            assertEquals(json, jo.optString("productId"),
+                    purchase.getProductId());
+            assertEquals(json, jo.optLong("purchaseTime"),
+                    purchase.getPurchaseTime());
+            assertEquals(json, jo.optInt("purchaseState"),
+                    purchase.getPurchaseState());
+            assertEquals(json, jo.optString("developerPayload"),
+                    purchase.getDeveloperPayload());
+            assertEquals(json, jo.optString("purchaseToken"),
+                    purchase.getPurchaseToken());
+        }
+    }
+
+    @Test
+    public void productMatchesJsonObject() throws Exception {
+        for (String json : PRODUCTS) {
+            Product product = new Product(json);
+            JSONObject jo = new JSONObject(json);
+            assertEquals(json, jo.optString("productId"),
+                    product.getProductId());
+            assertEquals(json, jo.optString("type"), product.getType());
+            assertEquals(json, jo.optString("price"), product.getPrice());
+            assertEquals(json, jo.optString("title"), product.getTitle());
+            assertEquals(json, jo.optString("description"),
+                    product.getDescription());
+        }
+    }
+
+    @Test
+    public void lenientValuesMatchAndroid() {
+        // the org.json jar used here returns "", 0 or throws for these, while
+        // the org.json of the Android framework, which the library runs
+        // against, returns "null", truncates the decimal and keeps the
+        // character after an unknown escape
+        Purchase purchase = new Purchase("{\"developerPayload\":null,"
+                + "\"purchaseTime\":\"1.5\",\"purchaseState\":\"1.0\","
+                + "\"purchaseToken\":\"\\x\\'\"}",
+                "sig", Product.MANAGED_PRODUCT);
+        assertEquals("null", purchase.getDeveloperPayload());
+        assertEquals(1, purchase.getPurchaseTime());
+        assertEquals(1, purchase.getPurchaseState());
+        assertEquals("x'", purchase.getPurchaseToken());
+    }
+
+    @Test
+    public void readsRequestedFieldsInOrder() throws Exception {
+        String[] values = JsonFieldReader.read(
+                "{\"b\":\"2\",\"a\":[1,2],\"c\":{\"d\":null}}", "a", "c", "e");
+        assertArrayEquals(new String[]{"[1,2]", "{\"d\":null}", null}, values);
+    }
+
+    @Test
+    public void rejectsMalformedJson() {
+        String[] malformed = {
+                "",
+                "[]",
+                "{",
+                "{\"productId\"}",
+                "{\"productId\":\"unterminated}",
+                "{\"productId\":\"a\" \"type\":\"b\"}",
+                "{\"productId\":\"\\u12\"}",
+                "{\"extra\":[1,2}",
+        };
+        for (String json : malformed) {
+            try {
+                JsonFieldReader.read(json, "productId", "type");
+                fail("expected JSONException for " + json);
+            } catch (JSONException e) {
+                // expected
+            }
+            try {
+                new Product(json);
+                fail("expected RuntimeException for " + json);
+            } catch (RuntimeException e) {
+                assertEquals(JSONException.class, e.getCause().getClass());
+            }
+        }
+    }
+}